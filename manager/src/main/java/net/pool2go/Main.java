@@ -1,5 +1,6 @@
 package net.pool2go;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Scanner;
 
 /**
@@ -10,6 +11,8 @@ public class Main {
     private static final int ARG_DB_PATH = 0;
     private static final int ARG_DB_NAME = 2;
     private static final int ARG_PORT = 4;
+    private static final int ARG_OPTIONAL = 6;
+    private static final String ENV_UDP_SECRET = "POOL2GO_UDP_SECRET";
 
     public static void main(String [] argv) {
 
@@ -23,6 +26,11 @@ public class Main {
         String path = null;
         String filename = null;
         int port = 0;
+        int nodes = 1;
+        String engine = Manager.ENGINE_SQLITE;
+        long snapshotSeconds = 0;
+        int udpPort = 0;
+        int historyHours = -1;
 
         // parse arguments
         boolean valid_args = true;
@@ -44,15 +52,45 @@ public class Main {
                 port = Integer.parseInt(argv[ARG_PORT + 1]);
             else
                 valid_args = false;
+
+            // optional, in any order
+            for (int i = ARG_OPTIONAL; i < argv.length; i += 2) {
+                if (i + 1 >= argv.length)
+                    valid_args = false;
+                else if (argv[i].equals("--nodes") || argv[i].equals("-n"))
+                    nodes = Integer.parseInt(argv[i + 1]);
+                else if (argv[i].equals("--engine") || argv[i].equals("-e"))
+                    engine = argv[i + 1];
+                else if (argv[i].equals("--snapshot") || argv[i].equals("-s"))
+                    snapshotSeconds = Long.parseLong(argv[i + 1]);
+                else if (argv[i].equals("--udp") || argv[i].equals("-u"))
+                    udpPort = Integer.parseInt(argv[i + 1]);
+                else if (argv[i].equals("--history") || argv[i].equals("-r"))
+                    historyHours = Integer.parseInt(argv[i + 1]);
+                else
+                    valid_args = false;
+            }
         } else
             valid_args = false;
 
+        // keep the datagram secret out of the argument list, where every user on the host can read it
+        String udpSecret = System.getenv(ENV_UDP_SECRET);
+        if (valid_args && udpPort != 0 && (udpSecret == null || udpSecret.isEmpty())) {
+            System.out.println(ENV_UDP_SECRET + " must be set to use --udp.");
+            valid_args = false;
+        }
+
         if (!valid_args) {
             System.out.println("Invalid arguments.\n" +
                     "Valid arguments:" + "\n" +
                     "    --path, -a                full path for the SQLite database" + "\n" +
                     "    --filename, -f            full name (including extension) for the SQLite database" + "\n" +
-                    "    --port, -p                port number for the server");
+                    "    --port, -p                port number for the server" + "\n" +
+                    "    --nodes, -n               (optional) number of cluster nodes, run on consecutive ports" + "\n" +
+                    "    --engine, -e              (optional) persistence engine, 'sqlite' (default) or 'journal'" + "\n" +
+                    "    --snapshot, -s            (optional) seconds between in-memory state snapshots, sqlite only" + "\n" +
+                    "    --udp, -u                 (optional) UDP port for location datagrams, signed with " + ENV_UDP_SECRET + "\n" +
+                    "    --history, -r             (optional) record location history, keeping this many hours (0 keeps all)");
             return;
         } else {
             // need to make sure it's always the full path
@@ -67,16 +105,26 @@ public class Main {
             System.out.println("Running with the following arguments:" + "\n" +
                     "Full path for SQLite DB: " + path + "\n" +
                     "File name for SQLite DB: " + filename + "\n" +
-                    "Server running on port:  " + Integer.toString(port) + "\n");
+                    "Server running on port:  " + Integer.toString(port) + "\n" +
+                    "Cluster nodes:           " + Integer.toString(nodes) + "\n" +
+                    "Persistence engine:      " + engine + "\n" +
+                    "Snapshot interval (s):   " + Long.toString(snapshotSeconds) + "\n" +
+                    "Datagram port:           " + (udpPort == 0 ? "disabled" : Integer.toString(udpPort)) + "\n" +
+                    "History retention (h):   " + (historyHours < 0 ? "disabled" : Integer.toString(historyHours)) + "\n");
         }
 
         // Start the manager
         Manager manager = null;
 
         try {
-            manager = new Manager(path, filename, port);
+            manager = new Manager(path, filename, port, nodes, engine, snapshotSeconds);
+            if (udpPort != 0)
+                manager.enableDatagrams(udpPort, udpSecret.getBytes(StandardCharsets.UTF_8));
+            if (historyHours >= 0)
+                manager.enableHistory(historyHours);
         } catch (Exception e) {
             e.printStackTrace();
+            if (manager != null) manager.stopServer();
             System.out.println("Could not instantiate Manager.");
             return;
         }
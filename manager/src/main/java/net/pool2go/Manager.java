@@ -5,6 +5,9 @@ import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 import java.util.logging.*;
 
 /**
@@ -12,9 +15,16 @@ import java.util.logging.*;
  */
 public class Manager {
 
+    public static final String ENGINE_SQLITE = "sqlite";
+    public static final String ENGINE_JOURNAL = "journal";
+
     private Logger logger;
     private Connection connection;
-    private Thread server;
+    private List<Thread> servers;
+    private List<Server> nodes;
+    private List<String> nodeDatabases;
+    private List<LocationHistory> histories;
+    private ClusterMap cluster;
 
     /**
      * Manages the Server, required for console input on when to stop the server.
@@ -25,6 +35,64 @@ public class Manager {
      * @throws Exception
      */
     public Manager(String path, String filename, int port) throws Exception {
+        this(path, filename, port, 1);
+    }
+
+    /**
+     * <p>Manages a cluster of Servers running in this JVM, acting as one service.</p>
+     *
+     * <p>Node {@code i} takes clients on {@code port + i} and talks to the other nodes on {@code port + nodes + i}, all
+     * on loopback. With more than one node, every node gets its own database named {@code node<i>_<filename>}.</p>
+     *
+     * @param path full path for the databases
+     * @param filename full file name for the database
+     * @param port client port of the first node
+     * @param nodes number of nodes to start
+     * @throws Exception
+     */
+    public Manager(String path, String filename, int port, int nodes) throws Exception {
+        this(path, filename, port, nodes, ENGINE_SQLITE);
+    }
+
+    /**
+     * <p>Manages a cluster of Servers running in this JVM, using the given persistence engine.</p>
+     *
+     * <p>With {@link #ENGINE_SQLITE} every node writes to a SQLite database as described in
+     * {@link #Manager(String, String, int, int)}. With {@link #ENGINE_JOURNAL} every node keeps a memory-mapped
+     * journal in the directory named like its database, with a {@code .journal} extension added.</p>
+     *
+     * @param path full path for the databases
+     * @param filename full file name for the database
+     * @param port client port of the first node
+     * @param nodes number of nodes to start
+     * @param engine {@link #ENGINE_SQLITE} or {@link #ENGINE_JOURNAL}
+     * @throws Exception
+     */
+    public Manager(String path, String filename, int port, int nodes, String engine) throws Exception {
+        this(path, filename, port, nodes, engine, 0);
+    }
+
+    /**
+     * <p>Manages a cluster of Servers running in this JVM, using the given persistence engine.</p>
+     *
+     * <p>With {@link #ENGINE_SQLITE} and a positive snapshot interval, every node keeps its locations in memory and
+     * snapshots them to a file named like its database, with a {@code .snapshot} extension added. A restarted node
+     * loads that file and only replays the newer rows, instead of reading the whole database.</p>
+     *
+     * @param path full path for the databases
+     * @param filename full file name for the database
+     * @param port client port of the first node
+     * @param nodes number of nodes to start
+     * @param engine {@link #ENGINE_SQLITE} or {@link #ENGINE_JOURNAL}
+     * @param snapshotSeconds time between two snapshots, 0 to disable snapshots
+     * @throws Exception
+     */
+    public Manager(String path, String filename, int port, int nodes, String engine, long snapshotSeconds)
+            throws Exception {
+        if (nodes < 1) throw new IllegalArgumentException("A cluster needs at least one node.");
+        if (!engine.equals(ENGINE_SQLITE) && !engine.equals(ENGINE_JOURNAL))
+            throw new IllegalArgumentException("Unknown persistence engine: " + engine);
+
         // build logger
         logger = Logger.getLogger(this.getClass().getSimpleName()); // change to another name?
         logger.log(Level.CONFIG, "Current working directory: " + new File(".").getCanonicalPath());
@@ -36,28 +104,136 @@ public class Manager {
             throw new Exception("Could not build Manager log.");
         }
 
-        // create database
-        connection = null;
+        // register every node before building any Server, ownership depends on the cluster size
+        cluster = new ClusterMap();
+        for (int i = 0; i < nodes; ++i)
+            cluster.addNode("localhost", port + nodes + i);
 
-        try {
-            dbFactory(path, filename);
-            connection.close();
-        } catch (SQLException e) {
-            logger.log(Level.SEVERE, "Could not create connection to SQL database.");
-            throw new Exception("Could not create DB.");
+        servers = new ArrayList<>();
+        this.nodes = new ArrayList<>();
+        nodeDatabases = new ArrayList<>();
+        histories = new ArrayList<>();
+
+        for (int i = 0; i < nodes; ++i) {
+            String nodeFilename = nodes == 1 ? filename : "node" + i + "_" + filename;
+
+            // create database
+            connection = null;
+
+            if (engine.equals(ENGINE_SQLITE)) {
+                try {
+                    dbFactory(path, nodeFilename);
+                    connection.close();
+                } catch (SQLException e) {
+                    logger.log(Level.SEVERE, "Could not create connection to SQL database.");
+                    stopServer();
+                    throw new Exception("Could not create DB.");
+                }
+            }
+
+            // start server
+            try {
+                Server server;
+                if (engine.equals(ENGINE_JOURNAL)) {
+                    LocationStore store = new JournalLocationStore(new File(path + nodeFilename + ".journal"));
+                    server = nodes == 1
+                            ? new Server(port, store)
+                            : new Server(port + i, store, cluster, i);
+                } else {
+                    server = nodes == 1
+                            ? new Server(port, path + nodeFilename)
+                            : new Server(port + i, path + nodeFilename, cluster, i);
+                    if (snapshotSeconds > 0)
+                        server.enableSnapshots(new File(path + nodeFilename + ".snapshot"), snapshotSeconds);
+                }
+                this.nodes.add(server);
+                nodeDatabases.add(path + nodeFilename);
+                servers.add(new Thread(server, "Server-node-" + i));
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "IOException thrown starting Server.", e);
+                stopServer();
+                throw new Exception("Could not start server.");
+            }
         }
 
-        // start server
-        server = null;
+        for (Thread server : servers)
+            server.start();
 
+        logger.log(Level.INFO, "Server says hi! :) Nodes running: " + nodes);
+    }
+
+    /**
+     * Give ownership of the cell containing a location to a node. Only the owner stores locations of that cell, other
+     * nodes forward updates for it. The locations the previous owner stored in the cell are handed over to the new
+     * owner.
+     *
+     * @param latitude latitude of a location in the cell
+     * @param longitude longitude of a location in the cell
+     * @param node id of the new owner
+     */
+    public void assignCell(double latitude, double longitude, int node) {
+        long cell = ClusterMap.cellOf(latitude, longitude);
+        int previous = cluster.ownerOf(cell);
+        cluster.assign(cell, node);
+        logger.log(Level.INFO, "Cell at (" + latitude + ", " + longitude + ") assigned to node " + node);
+
+        if (previous == node) return;
         try {
-            server = new Thread(new Server(port, path + filename));
-        } catch (IOException e) {
-            logger.log(Level.SEVERE, "IOException thrown starting Server.", e);
-            throw new Exception("Could not start server.");
+            nodes.get(previous).handOffCell(cell);
+        } catch (SQLException | IOException e) {
+            logger.log(Level.SEVERE, "Node " + previous + " could not hand the cell over to node " + node, e);
+        }
+    }
+
+    /**
+     * Open a UDP endpoint for signed location datagrams on every node, node {@code i} on {@code port + i}. The nodes
+     * share one replay guard, so a datagram accepted by one node cannot be replayed to another.
+     *
+     * @param port UDP port of the first node
+     * @param secret secret shared with the clients
+     * @throws IOException could not open a UDP socket
+     * @see Server#enableDatagrams(int, byte[], DatagramReplayGuard)
+     */
+    public void enableDatagrams(int port, byte[] secret) throws IOException {
+        DatagramReplayGuard guard = new DatagramReplayGuard();
+        for (int i = 0; i < nodes.size(); ++i)
+            nodes.get(i).enableDatagrams(port + i, secret, guard);
+        logger.log(Level.INFO, "Datagram endpoints opened from port " + port);
+    }
+
+    /**
+     * Record the history of every update on every node, in a database named like the node's database with a
+     * {@code .history} extension added.
+     *
+     * @param retentionHours hours of history to keep, 0 to keep everything
+     * @throws IOException could not create a history database
+     * @see Server#enableHistory(LocationHistory)
+     */
+    public void enableHistory(int retentionHours) throws IOException {
+        for (int i = 0; i < nodes.size(); ++i) {
+            LocationHistory history = new LocationHistory(nodeDatabases.get(i) + ".history", retentionHours);
+            histories.add(history);
+            nodes.get(i).enableHistory(history);
         }
+        logger.log(Level.INFO, "Recording location history, retention hours: " + retentionHours);
+    }
 
-        logger.log(Level.INFO, "Server says hi! :)");
+    /**
+     * Find the recorded locations of a key within a time window, across every node, oldest first. A key moving
+     * between cells can have its history spread over several nodes.
+     *
+     * @param key the unique identifier
+     * @param from start of the window, inclusive, in milliseconds since the epoch
+     * @param to end of the window, exclusive, in milliseconds since the epoch
+     * @return the recorded locations, empty if history is not enabled
+     * @throws SQLException if a history database cannot be accessed
+     */
+    public List<TimedLocationObject> findHistory(String key, long from, long to) throws SQLException {
+        List<TimedLocationObject> locationObjects = new ArrayList<>();
+        for (LocationHistory history : histories)
+            locationObjects.addAll(history.findHistory(key, from, to));
+        locationObjects.sort(Comparator.comparingLong(TimedLocationObject::getTime));
+        return locationObjects;
     }
 
     /**
@@ -102,12 +278,12 @@ public class Manager {
     }
 
     /**
-     * Stop the server. Since Thread.stop() is not recommended, use Thread.interrupt().
+     * Stop every node. Since Thread.stop() is not recommended, use Thread.interrupt().
      */
     public void stopServer() {
-        if (server != null) {
+        for (Thread server : servers) {
             server.interrupt();
-            logger.log(Level.INFO, "Server interrupted.");
+            logger.log(Level.INFO, server.getName() + " interrupted.");
         }
     }
 }
@@ -0,0 +1,161 @@
+package net.pool2go;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * <p>Maps geographic cells to the nodes of a cluster of Servers.</p>
+ *
+ * <p>The world is cut into a grid of square cells of {@link #CELL_SIZE} degrees. Every cell is owned by exactly one
+ * node, which is the only node that stores locations falling into it. By default ownership is spread over the nodes by
+ * hashing the cell, the Manager can override this for any cell with {@link #assign(long, int)}.</p>
+ *
+ * <p>All nodes should be added before any Server is started, adding a node changes the default owner of most cells.</p>
+ *
+ * <p>The map also remembers which node stores the latest location of every key, so when a key moves to a cell owned by
+ * another node, or its cell is handed to another node, the node that stored it before can be told to drop it.</p>
+ *
+ * @see Server
+ * @see PeerProtocol
+ */
+public class ClusterMap {
+
+    /**
+     * Width and height of a cell in decimal degrees. Twice the 200 meter search radius used by the Server, so a neighbour
+     * search never touches more than four cells.
+     */
+    public static final double CELL_SIZE = 0.01;
+
+    private static final long CELL_COLUMNS = (long) Math.ceil(360 / CELL_SIZE);
+
+    private final List<InetSocketAddress> peers;
+    private final ConcurrentHashMap<Long, Integer> owners;
+    private final ConcurrentHashMap<String, Integer> keyOwners;
+
+    /**
+     * Create an empty cluster, nodes are added with {@link #addNode(String, int)}.
+     */
+    public ClusterMap() {
+        peers = new CopyOnWriteArrayList<>();
+        owners = new ConcurrentHashMap<>();
+        keyOwners = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Register a node by the address of its internal peer listener.
+     *
+     * @param host host name or address the node's peer listener is reachable at
+     * @param peerPort port of the node's peer listener
+     * @return the id of the new node
+     */
+    public int addNode(String host, int peerPort) {
+        peers.add(new InetSocketAddress(host, peerPort));
+        return peers.size() - 1;
+    }
+
+    /**
+     * @return number of nodes in the cluster
+     */
+    public int size() {
+        return peers.size();
+    }
+
+    /**
+     * @param node id of the node
+     * @return address of the node's peer listener
+     */
+    public InetSocketAddress getPeerAddress(int node) {
+        return peers.get(node);
+    }
+
+    /**
+     * Give ownership of a cell to a node, overriding the default hashed owner.
+     *
+     * @param cell the cell, see {@link #cellOf(double, double)}
+     * @param node id of the new owner
+     */
+    public void assign(long cell, int node) {
+        if (node < 0 || node >= peers.size())
+            throw new IllegalArgumentException("No node with id " + node);
+        owners.put(cell, node);
+    }
+
+    /**
+     * @param cell the cell, see {@link #cellOf(double, double)}
+     * @return id of the node owning the cell
+     */
+    public int ownerOf(long cell) {
+        Integer owner = owners.get(cell);
+        if (owner != null) return owner;
+        return Math.floorMod(Long.hashCode(cell), peers.size());
+    }
+
+    /**
+     * @param latitude latitude of the location
+     * @param longitude longitude of the location
+     * @return id of the node owning the cell the location falls into
+     */
+    public int ownerOf(double latitude, double longitude) {
+        return ownerOf(cellOf(latitude, longitude));
+    }
+
+    /**
+     * Record that a node now stores the latest location of a key.
+     *
+     * @param key the unique identifier
+     * @param node id of the node storing the key
+     * @return id of the node that stored the key before, or -1 if it is not known
+     */
+    public int moveKey(String key, int node) {
+        Integer previous = keyOwners.put(key, node);
+        return previous == null ? -1 : previous;
+    }
+
+    /**
+     * Move a key from one node to another, only if the first node is still known to store it, or nobody is. Checked
+     * and updated atomically, so a key that moved on in the meantime is left alone.
+     *
+     * @param key the unique identifier
+     * @param from id of the node expected to store the key
+     * @param to id of the node taking the key over
+     * @return true if the key now belongs to {@code to}
+     */
+    public boolean claimKey(String key, int from, int to) {
+        return keyOwners.replace(key, from, to) || keyOwners.putIfAbsent(key, to) == null;
+    }
+
+    /**
+     * @param key the unique identifier
+     * @return id of the node storing the latest location of the key, or -1 if it is not known
+     */
+    public int ownerOfKey(String key) {
+        Integer owner = keyOwners.get(key);
+        return owner == null ? -1 : owner;
+    }
+
+    /**
+     * Record that a node stores a key, unless another node is already known to store it. Used by nodes to announce the
+     * keys they already hold when they start.
+     *
+     * @param key the unique identifier
+     * @param node id of the node storing the key
+     */
+    public void addKey(String key, int node) {
+        keyOwners.putIfAbsent(key, node);
+    }
+
+    /**
+     * Find the cell a location falls into. Cells are numbered row by row, starting at (-90, -180).
+     *
+     * @param latitude latitude of the location
+     * @param longitude longitude of the location
+     * @return the cell number
+     */
+    public static long cellOf(double latitude, double longitude) {
+        long row = (long) Math.floor((latitude + 90) / CELL_SIZE);
+        long column = (long) Math.floor((longitude + 180) / CELL_SIZE);
+        return row * CELL_COLUMNS + column;
+    }
+}
@@ -0,0 +1,60 @@
+package net.pool2go;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>Replay protection for {@link LocationDatagram}s. A datagram is only accepted if its counter is within
+ * {@link #WINDOW_MILLIS} of the local clock, higher than the last counter accepted for its client id, and not older
+ * than the guard itself.</p>
+ *
+ * <p>The last counter of every client id is kept in memory only. Rejecting counters from before the guard was created
+ * is what stops a datagram captured before a restart from being replayed right after it, at the price of dropping
+ * datagrams that were sent just before the restart.</p>
+ *
+ * <p>Every Server of a cluster taking datagrams must share one guard, otherwise a datagram accepted by one node can be
+ * replayed to another. The guard is safe to use from several threads.</p>
+ *
+ * @see Server#enableDatagrams(int, byte[], DatagramReplayGuard)
+ */
+public class DatagramReplayGuard {
+
+    public static final long WINDOW_MILLIS = 30000;
+
+    private final Map<String, Long> counters;
+    private final long createdAt;
+    private volatile long evictedAt;
+
+    public DatagramReplayGuard() {
+        counters = new ConcurrentHashMap<>();
+        createdAt = System.currentTimeMillis();
+        evictedAt = createdAt;
+    }
+
+    /**
+     * Check a datagram's counter and record it if it is fresh. Client ids not heard from within the window are
+     * forgotten now and then, their old counters would be rejected anyway.
+     *
+     * @param clientId the client id of an authenticated datagram
+     * @param counter its counter
+     * @return true if the datagram is fresh and its counter was recorded
+     */
+    public boolean accept(String clientId, long counter) {
+        long now = System.currentTimeMillis();
+        if (Math.abs(now - counter) > WINDOW_MILLIS || counter < createdAt) return false;
+
+        if (now - evictedAt > WINDOW_MILLIS) {
+            evictedAt = now;
+            counters.values().removeIf(last -> now - last > WINDOW_MILLIS);
+        }
+
+        // the check and the update of a client's counter are one atomic step, a duplicate arriving on another node at
+        // the same time sees the counter recorded by the first
+        boolean[] accepted = new boolean[1];
+        counters.compute(clientId, (id, last) -> {
+            accepted[0] = last == null || counter > last;
+            return accepted[0] ? counter : last;
+        });
+        return accepted[0];
+    }
+}
@@ -0,0 +1,497 @@
+package net.pool2go;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * <p>An append-only location journal kept in memory-mapped segment files.</p>
+ *
+ * <p>Every update is appended as a fixed-size record of {@link #RECORD_SIZE} bytes to the active segment, a file of a
+ * fixed number of records mapped into memory. Nothing is ever overwritten in place, there is no per-update index work
+ * on disk: the latest location of every key lives in memory, and the journal only exists to rebuild it.</p>
+ *
+ * <p>A record is laid out as:
+ * <ul>
+ *     <li>key length in bytes (short), a length of 0 marks the end of the written records in a segment</li>
+ *     <li>the UTF-8 key, padded to {@link #MAX_KEY_BYTES} bytes</li>
+ *     <li>latitude and longitude (double), both NaN for a removed key</li>
+ *     <li>sequence number of the update (long), the highest sequence number of a key is its latest location</li>
+ *     <li>CRC32 of everything above (int), a record that does not match is a torn write and ends the segment</li>
+ * </ul></p>
+ *
+ * <p>When the active segment is full it is sealed and a new one is started. Every segment keeps count of its live
+ * records, the ones still the latest for their key. Once enough sealed segments are at most half live, measured
+ * against their capacity, a background compaction copies their live records into fresh segments and deletes them.
+ * Counting against capacity makes the partly written segments left behind by every restart candidates as well, so
+ * they are folded together instead of piling up. Segments that are mostly live are left alone, so the same live
+ * records are not copied over and over.</p>
+ *
+ * <p>On startup every segment is scanned sequentially and the record with the highest sequence number wins for each
+ * key, so neither the order of the segments nor an interrupted compaction matter.</p>
+ *
+ * <p>Removing a key appends a record without a location. It stays the latest record of its key, and is copied by
+ * compaction like any other, so older records of the key cannot come back on startup.</p>
+ */
+public class JournalLocationStore implements LocationStore {
+
+    public static final int RECORD_SIZE = 128;
+    public static final int MAX_KEY_BYTES = 96;
+    public static final int DEFAULT_RECORDS_PER_SEGMENT = 1 << 16;
+
+    private static final int OFFSET_KEY = 2;
+    private static final int OFFSET_LATITUDE = OFFSET_KEY + MAX_KEY_BYTES;
+    private static final int OFFSET_LONGITUDE = OFFSET_LATITUDE + 8;
+    private static final int OFFSET_SEQUENCE = OFFSET_LONGITUDE + 8;
+    private static final int OFFSET_CRC = OFFSET_SEQUENCE + 8;
+
+    private static final int COMPACTION_THRESHOLD = 4;
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private final Logger logger = Logger.getLogger(getClass().getSimpleName());
+
+    private final File directory;
+    private final int recordsPerSegment;
+    private final Map<String, Entry> latest;
+    private final List<Segment> sealed;
+    private final Map<Long, Segment> segments;
+    private final ExecutorService compactor;
+
+    private Segment active;
+    private long nextSegmentId;
+    private long nextSequence;
+    private boolean compacting;
+
+    /**
+     * The latest known location of a key and the segment its record lives in.
+     */
+    private static class Entry {
+        final double latitude;
+        final double longitude;
+        final long sequence;
+        final long segmentId;
+
+        Entry(double latitude, double longitude, long sequence, long segmentId) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.sequence = sequence;
+            this.segmentId = segmentId;
+        }
+    }
+
+    /**
+     * One mapped segment file.
+     */
+    private static class Segment {
+        final long id;
+        final File file;
+        final RandomAccessFile randomAccessFile;
+        final MappedByteBuffer buffer;
+        final int capacity;
+        int records;
+        int live;
+
+        Segment(long id, File file, int capacity) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.capacity = capacity;
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) capacity * RECORD_SIZE);
+        }
+
+        boolean isFull() {
+            return records == capacity;
+        }
+
+        /**
+         * @return true if at most half of the segment holds live records, unwritten space counts as garbage
+         */
+        boolean isMostlyGarbage() {
+            return live * 2 <= capacity;
+        }
+
+        void close() throws IOException {
+            buffer.force();
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Open a journal with {@link #DEFAULT_RECORDS_PER_SEGMENT} records per segment.
+     *
+     * @param directory directory holding the segment files, created if it does not exist
+     * @throws IOException could not create the directory or read the existing segments
+     */
+    public JournalLocationStore(File directory) throws IOException {
+        this(directory, DEFAULT_RECORDS_PER_SEGMENT);
+    }
+
+    /**
+     * Open a journal and rebuild the latest location of every key from the existing segments.
+     *
+     * @param directory directory holding the segment files, created if it does not exist
+     * @param recordsPerSegment number of records in a newly created segment
+     * @throws IOException could not create the directory or read the existing segments
+     */
+    public JournalLocationStore(File directory, int recordsPerSegment) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Could not create journal directory: " + directory);
+
+        this.directory = directory;
+        this.recordsPerSegment = recordsPerSegment;
+        latest = new ConcurrentHashMap<>();
+        sealed = new ArrayList<>();
+        segments = new HashMap<>();
+        compactor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "JournalLocationStore-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        recover();
+        synchronized (this) {
+            active = newSegment();
+        }
+        logger.log(Level.CONFIG, "Journal opened at " + directory + " with " + size() + " keys.");
+
+        // segments left behind by earlier runs are sealed, fold them together right away
+        synchronized (this) {
+            scheduleCompaction();
+        }
+    }
+
+    /**
+     * Scan every existing segment sequentially and keep the record with the highest sequence number per key. The
+     * segments found become sealed segments, new records always go to a new segment.
+     */
+    private void recover() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) throw new IOException("Could not list journal directory: " + directory);
+        Arrays.sort(files);
+
+        byte[] record = new byte[RECORD_SIZE];
+        for (File file : files) {
+            String name = file.getName();
+            long id = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            Segment segment = new Segment(id, file, (int) (file.length() / RECORD_SIZE));
+
+            ByteBuffer buffer = segment.buffer.duplicate();
+            while (segment.records < segment.capacity) {
+                buffer.get(record);
+                ByteBuffer view = ByteBuffer.wrap(record);
+                short keyLength = view.getShort(0);
+                if (keyLength <= 0 || keyLength > MAX_KEY_BYTES || view.getInt(OFFSET_CRC) != checksum(record))
+                    break; // end of written records, or a torn write
+                ++segment.records;
+
+                String key = new String(record, OFFSET_KEY, keyLength, StandardCharsets.UTF_8);
+                long sequence = view.getLong(OFFSET_SEQUENCE);
+                Entry entry = new Entry(view.getDouble(OFFSET_LATITUDE), view.getDouble(OFFSET_LONGITUDE), sequence, id);
+                latest.merge(key, entry, (a, b) -> a.sequence >= b.sequence ? a : b);
+                nextSequence = Math.max(nextSequence, sequence + 1);
+            }
+
+            nextSegmentId = Math.max(nextSegmentId, id + 1);
+            sealed.add(segment);
+            segments.put(id, segment);
+        }
+
+        for (Entry entry : latest.values())
+            ++segments.get(entry.segmentId).live;
+    }
+
+    /**
+     * Create and map a new segment. Must hold the lock on this.
+     */
+    private Segment newSegment() throws IOException {
+        long id = nextSegmentId++;
+        Segment segment = new Segment(id,
+                new File(directory, String.format("%s%016d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX)), recordsPerSegment);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    /**
+     * Make an entry the latest location of its key, and count its record as garbage in the segment of the entry it
+     * replaces. Must hold the lock on this.
+     */
+    private void setLatest(String key, Entry entry) {
+        ++segments.get(entry.segmentId).live;
+        Entry previous = latest.put(key, entry);
+        if (previous != null) {
+            Segment segment = segments.get(previous.segmentId);
+            if (segment != null) --segment.live;
+        }
+    }
+
+    private static int checksum(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, OFFSET_CRC);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Append a record to the end of a segment. The caller makes sure the segment is not full.
+     */
+    private static void append(Segment segment, byte[] key, double latitude, double longitude, long sequence) {
+        byte[] record = new byte[RECORD_SIZE];
+        ByteBuffer view = ByteBuffer.wrap(record);
+        view.putShort(0, (short) key.length);
+        System.arraycopy(key, 0, record, OFFSET_KEY, key.length);
+        view.putDouble(OFFSET_LATITUDE, latitude);
+        view.putDouble(OFFSET_LONGITUDE, longitude);
+        view.putLong(OFFSET_SEQUENCE, sequence);
+        view.putInt(OFFSET_CRC, checksum(record));
+
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(segment.records * RECORD_SIZE);
+        buffer.put(record);
+        ++segment.records;
+    }
+
+    /**
+     * Append the location to the active segment and make it the latest location of its key.
+     *
+     * @param locationObject the updated location, with a key
+     * @throws IOException the key is missing, empty or too long, or a new segment could not be created
+     */
+    @Override
+    public synchronized void insert(LocationObject locationObject) throws IOException {
+        // a key length of 0 marks the end of a segment, so a record must never have an empty key
+        if (locationObject.getKey() == null || locationObject.getKey().isEmpty())
+            throw new IOException("Cannot journal a location without a key.");
+        byte[] key = locationObject.getKey().getBytes(StandardCharsets.UTF_8);
+        if (key.length > MAX_KEY_BYTES) throw new IOException("Key too long for journal record: " + locationObject.getKey());
+
+        if (active.isFull()) {
+            active.buffer.force();
+            sealed.add(active);
+            active = newSegment();
+            scheduleCompaction();
+        }
+
+        long sequence = nextSequence++;
+        append(active, key, locationObject.getLatitude(), locationObject.getLongitude(), sequence);
+        setLatest(locationObject.getKey(),
+                new Entry(locationObject.getLatitude(), locationObject.getLongitude(), sequence, active.id));
+    }
+
+    /**
+     * Append a batch of locations while holding the lock once, see {@link #insert(LocationObject)}.
+     *
+     * @param locationObjects the updated locations, each with a key
+     * @throws IOException a key is missing or too long, or a new segment could not be created
+     */
+    @Override
+    public synchronized void insertAll(List<LocationObject> locationObjects) throws IOException {
+        for (LocationObject locationObject : locationObjects)
+            insert(locationObject);
+    }
+
+    /**
+     * Append the locations of keys without a location, or whose latest record removed them, see
+     * {@link #insert(LocationObject)}.
+     *
+     * @param locationObjects the locations, each with a key
+     * @throws IOException a key is missing or too long, or a new segment could not be created
+     */
+    @Override
+    public synchronized void insertAllAbsent(List<LocationObject> locationObjects) throws IOException {
+        for (LocationObject locationObject : locationObjects) {
+            Entry entry = latest.get(locationObject.getKey());
+            if (entry == null || isRemoved(entry))
+                insert(locationObject);
+        }
+    }
+
+    /**
+     * Append a record without a location for the key, if it has a location.
+     *
+     * @param key the unique identifier
+     * @throws IOException a new segment could not be created
+     */
+    @Override
+    public synchronized void remove(String key) throws IOException {
+        Entry entry = latest.get(key);
+        if (entry == null || isRemoved(entry)) return;
+        insert(new LocationObject(key, Double.NaN, Double.NaN));
+    }
+
+    private static boolean isRemoved(Entry entry) {
+        return Double.isNaN(entry.latitude);
+    }
+
+    /**
+     * Visit the latest location of every key that was not removed.
+     */
+    @Override
+    public void forEach(Consumer<LocationObject> action) {
+        for (Map.Entry<String, Entry> candidate : latest.entrySet()) {
+            Entry entry = candidate.getValue();
+            if (!isRemoved(entry))
+                action.accept(new LocationObject(candidate.getKey(), entry.latitude, entry.longitude));
+        }
+    }
+
+    /**
+     * Search the in-memory latest locations, see {@link LocationStore#findNearest(LocationObject, ArrayList)}. Removed
+     * keys never match, their NaN location is not close to anything.
+     */
+    @Override
+    public void findNearest(LocationObject locationObject, ArrayList<LocationObject> locationObjects) {
+        int found = 0;
+        for (Map.Entry<String, Entry> candidate : latest.entrySet()) {
+            if (candidate.getKey().equals(locationObject.getKey())) continue;
+
+            // https://en.wikipedia.org/wiki/Decimal_degrees
+            // 0.005 ~ 200 meters
+            Entry entry = candidate.getValue();
+            if (Math.abs(entry.latitude - locationObject.getLatitude()) < 0.005
+                    && Math.abs(entry.longitude - locationObject.getLongitude()) < 0.005) {
+                locationObjects.add(new LocationObject(locationObject.getKey(), entry.latitude, entry.longitude));
+                ++found;
+            }
+        }
+
+        if (found == 0) locationObjects.clear();
+    }
+
+    /**
+     * Start a compaction on the compactor thread if enough sealed segments are mostly garbage and none is running. Must
+     * hold the lock on this.
+     */
+    private void scheduleCompaction() {
+        if (compacting || compactor.isShutdown()) return;
+
+        int candidates = 0;
+        for (Segment segment : sealed)
+            if (segment.isMostlyGarbage()) ++candidates;
+
+        if (candidates >= COMPACTION_THRESHOLD) {
+            compacting = true;
+            compactor.execute(this::compact);
+        }
+    }
+
+    /**
+     * <p>Copy the live records of the sealed segments that are mostly garbage into fresh segments, then delete those
+     * segments. Runs on the compactor thread, concurrently with inserts.</p>
+     *
+     * <p>A key updated while compacting keeps its newer entry; its stale copy in the compacted segment is counted as
+     * garbage, and is harmless to recovery since it prefers the higher sequence number.</p>
+     */
+    private void compact() {
+        List<Segment> compacted = new ArrayList<>();
+        List<Segment> victims = new ArrayList<>();
+        synchronized (this) {
+            for (Segment segment : sealed)
+                if (segment.isMostlyGarbage()) victims.add(segment);
+        }
+
+        try {
+            Set<Long> victimIds = new HashSet<>();
+            for (Segment segment : victims) victimIds.add(segment.id);
+
+            Segment output = null;
+            for (Map.Entry<String, Entry> candidate : latest.entrySet()) {
+                Entry entry = candidate.getValue();
+                if (!victimIds.contains(entry.segmentId)) continue;
+
+                if (output == null || output.isFull()) {
+                    synchronized (this) {
+                        output = newSegment();
+                    }
+                    compacted.add(output);
+                }
+                append(output, candidate.getKey().getBytes(StandardCharsets.UTF_8), entry.latitude, entry.longitude,
+                        entry.sequence);
+
+                synchronized (this) {
+                    Entry current = latest.get(candidate.getKey());
+                    if (current != null && current.sequence == entry.sequence)
+                        setLatest(candidate.getKey(),
+                                new Entry(entry.latitude, entry.longitude, entry.sequence, output.id));
+                }
+            }
+
+            for (Segment segment : compacted) segment.buffer.force();
+
+            synchronized (this) {
+                sealed.removeAll(victims);
+                sealed.addAll(compacted);
+                for (Segment segment : victims) segments.remove(segment.id);
+            }
+
+            for (Segment segment : victims) {
+                segment.close();
+                if (!segment.file.delete())
+                    logger.log(Level.WARNING, "Could not delete compacted segment " + segment.file
+                            + ", it will be compacted again on the next start.");
+            }
+
+            logger.log(Level.INFO, "Compacted " + victims.size() + " segments into " + compacted.size() + ".");
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Journal compaction failed, keeping the sealed segments.", e);
+            // whatever was compacted is a valid copy and may already hold the latest records of some keys
+            synchronized (this) {
+                sealed.addAll(compacted);
+            }
+        } finally {
+            synchronized (this) {
+                compacting = false;
+                // segments sealed meanwhile may already be due
+                scheduleCompaction();
+            }
+        }
+    }
+
+    /**
+     * @return number of keys with a location
+     */
+    public int size() {
+        int size = 0;
+        for (Entry entry : latest.values())
+            if (!isRemoved(entry)) ++size;
+        return size;
+    }
+
+    /**
+     * Wait for a running compaction, then flush and close every segment.
+     *
+     * @throws IOException could not flush or close a segment
+     */
+    @Override
+    public void close() throws IOException {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            for (Segment segment : sealed) segment.close();
+            active.close();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package net.pool2go;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * <p>A compact, authenticated location datagram for the Server's UDP endpoint. There is no handshake: a client sends
+ * its position in a single datagram and optionally gets a single datagram back.</p>
+ *
+ * <p>A datagram is laid out as:
+ * <ul>
+ *     <li>version and type (byte, byte), flags (byte)</li>
+ *     <li>counter (long): the client's wall clock time in milliseconds, strictly increasing per client id</li>
+ *     <li>client id length (short) and the UTF-8 client id, the Server stores the location under it with
+ *     {@link Server#DATAGRAM_KEY_PREFIX} in front</li>
+ *     <li>latitude and longitude (double)</li>
+ *     <li>the first {@link #MAC_SIZE} bytes of an HMAC-SHA256 over everything above, with the shared secret</li>
+ * </ul></p>
+ *
+ * <p>The counter is what replay protection is keyed on, together with the client id, see
+ * {@link DatagramReplayGuard}. A reply echoes the counter of the update it answers.</p>
+ *
+ * <p>Every client signs with the same secret, so the signature authenticates the sender as a client of the Server,
+ * not as the owner of the client id it claims.</p>
+ */
+public class LocationDatagram {
+
+    public static final byte VERSION = 1;
+    public static final byte TYPE_UPDATE = 1;
+    public static final byte TYPE_NEIGHBOUR = 2;
+    public static final byte FLAG_REPLY = 1;
+
+    public static final int MAX_SIZE = 512;
+    public static final int MAC_SIZE = 16;
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    private final byte type;
+    private final byte flags;
+    private final long counter;
+    private final LocationObject locationObject;
+
+    /**
+     * @param type {@link #TYPE_UPDATE} or {@link #TYPE_NEIGHBOUR}
+     * @param flags {@link #FLAG_REPLY} if the client wants a neighbour back, 0 otherwise
+     * @param counter see the class description
+     * @param locationObject the location, its key is the client id
+     */
+    public LocationDatagram(byte type, byte flags, long counter, LocationObject locationObject) {
+        if (locationObject.getKey() == null) throw new IllegalArgumentException("A datagram needs a client id.");
+        this.type = type;
+        this.flags = flags;
+        this.counter = counter;
+        this.locationObject = locationObject;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public boolean isReplyWanted() {
+        return (flags & FLAG_REPLY) != 0;
+    }
+
+    public long getCounter() {
+        return counter;
+    }
+
+    public LocationObject getLocationObject() {
+        return locationObject;
+    }
+
+    /**
+     * Encode and sign the datagram.
+     *
+     * @param secret the secret shared by the Server and its clients
+     * @return the bytes to send
+     */
+    public byte[] encode(byte[] secret) {
+        byte[] clientId = locationObject.getKey().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(3 + 8 + 2 + clientId.length + 16 + MAC_SIZE);
+        if (buffer.capacity() > MAX_SIZE) throw new IllegalArgumentException("Client id too long for a datagram.");
+
+        buffer.put(VERSION);
+        buffer.put(type);
+        buffer.put(flags);
+        buffer.putLong(counter);
+        buffer.putShort((short) clientId.length);
+        buffer.put(clientId);
+        buffer.putDouble(locationObject.getLatitude());
+        buffer.putDouble(locationObject.getLongitude());
+        buffer.put(mac(secret, buffer.array(), buffer.position()));
+        return buffer.array();
+    }
+
+    /**
+     * Check the signature of a datagram and decode it.
+     *
+     * @param data received bytes
+     * @param length number of received bytes
+     * @param secret the secret shared by the Server and its clients
+     * @return the decoded datagram
+     * @throws IOException the datagram is malformed, of an unknown version, or not signed with the secret
+     */
+    public static LocationDatagram decode(byte[] data, int length, byte[] secret) throws IOException {
+        if (length <= MAC_SIZE) throw new IOException("Datagram too short.");
+
+        byte[] expected = mac(secret, data, length - MAC_SIZE);
+        if (!MessageDigest.isEqual(expected, Arrays.copyOfRange(data, length - MAC_SIZE, length)))
+            throw new IOException("Datagram signature does not match.");
+
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data, 0, length - MAC_SIZE);
+            if (buffer.get() != VERSION) throw new IOException("Unknown datagram version.");
+            byte type = buffer.get();
+            byte flags = buffer.get();
+            long counter = buffer.getLong();
+            byte[] clientId = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(clientId);
+            double latitude = buffer.getDouble();
+            double longitude = buffer.getDouble();
+
+            return new LocationDatagram(type, flags, counter,
+                    new LocationObject(new String(clientId, StandardCharsets.UTF_8), latitude, longitude));
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Datagram is truncated.");
+        }
+    }
+
+    private static byte[] mac(byte[] secret, byte[] data, int length) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(secret, MAC_ALGORITHM));
+            mac.update(data, 0, length);
+            return Arrays.copyOf(mac.doFinal(), MAC_SIZE);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("Cannot sign datagrams with the given secret.", e);
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package net.pool2go;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.sql.*;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>An append-only history of every location update, for analytics and replay.</p>
+ *
+ * <p>Updates are only queued on the request path. A background thread drains the queue and writes it in batches, one
+ * transaction per batch, to a SQLite database of its own so it never competes with the Locations table for its write
+ * lock. If the queue is full the update is left out of the history, the live update is never held up.</p>
+ *
+ * <p>The history is partitioned by hour (UTC) into tables named {@code History_yyyyMMddHH}. Retention drops whole
+ * partitions with a single {@code DROP TABLE}, and a range scan only reads the partitions its time window covers.</p>
+ */
+public class LocationHistory implements Closeable {
+
+    public static final long PARTITION_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private static final String PARTITION_PREFIX = "History_";
+    private static final DateTimeFormatter PARTITION_FORMAT =
+            DateTimeFormatter.ofPattern("yyyyMMddHH").withZone(ZoneOffset.UTC);
+
+    private static final int QUEUE_CAPACITY = 100000;
+    private static final int BATCH_SIZE = 1000;
+    private static final long RETENTION_CHECK_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final Logger logger = Logger.getLogger(getClass().getSimpleName());
+
+    private final String dbUrl;
+    private final int retentionHours;
+    private final BlockingQueue<TimedLocationObject> queue;
+    private final AtomicLong dropped;
+    private final Thread writer;
+
+    private volatile boolean closed;
+
+    /**
+     * Create the history database if needed and start the background writer.
+     *
+     * @param databaseUrl full path and filename for the history database
+     * @param retentionHours partitions older than this many hours are dropped, 0 to keep everything
+     * @throws IOException could not create or open the history database
+     */
+    public LocationHistory(String databaseUrl, int retentionHours) throws IOException {
+        dbUrl = "jdbc:sqlite:" + databaseUrl;
+        this.retentionHours = retentionHours;
+        queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        dropped = new AtomicLong();
+
+        Connection connection;
+        try {
+            connection = DriverManager.getConnection(dbUrl);
+            // readers of the history must not block the writer, nor the other way around
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("PRAGMA journal_mode=WAL");
+            }
+        } catch (SQLException e) {
+            logger.log(Level.SEVERE, "Could not create connection to history database.");
+            throw new IOException("Could not create history database.");
+        }
+
+        writer = new Thread(() -> runWriter(connection), "LocationHistory-writer");
+        writer.setDaemon(true);
+        writer.start();
+        logger.log(Level.CONFIG, "Recording location history at: " + dbUrl);
+    }
+
+    /**
+     * Queue an update for the history, recorded at the current time. Never blocks.
+     *
+     * @param locationObject the updated location, with a key
+     * @return false if the queue was full and the update was left out of the history
+     */
+    public boolean record(LocationObject locationObject) {
+        return record(locationObject, System.currentTimeMillis());
+    }
+
+    /**
+     * Queue an update for the history, recorded at the given time. Never blocks.
+     */
+    boolean record(LocationObject locationObject, long time) {
+        if (closed) return false;
+        boolean queued = queue.offer(new TimedLocationObject(locationObject.getKey(),
+                locationObject.getLatitude(), locationObject.getLongitude(), time));
+        if (!queued && dropped.incrementAndGet() % 10000 == 1)
+            logger.log(Level.WARNING, "History queue full, " + dropped.get() + " updates left out so far.");
+        return queued;
+    }
+
+    /**
+     * @return number of updates left out of the history because the queue was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Drain the queue in batches until closed, and drop expired partitions now and then.
+     */
+    private void runWriter(Connection connection) {
+        List<TimedLocationObject> batch = new ArrayList<>(BATCH_SIZE);
+        long retentionCheckedAt = 0;
+
+        try {
+            while (!closed || !queue.isEmpty()) {
+                TimedLocationObject first = queue.poll(1, TimeUnit.SECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, BATCH_SIZE - 1);
+                    try {
+                        writeBatch(connection, batch);
+                    } catch (SQLException e) {
+                        logger.log(Level.SEVERE, "Could not write " + batch.size() + " updates to history.", e);
+                    }
+                    batch.clear();
+                }
+
+                long now = System.currentTimeMillis();
+                if (retentionHours > 0 && now - retentionCheckedAt > RETENTION_CHECK_MILLIS) {
+                    try {
+                        dropPartitionsBefore(connection, now - retentionHours * PARTITION_MILLIS);
+                    } catch (SQLException e) {
+                        logger.log(Level.WARNING, "Could not drop expired history partitions.", e);
+                    }
+                    retentionCheckedAt = now;
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.log(Level.WARNING, "History writer interrupted, " + queue.size() + " updates not written.");
+        } finally {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                logger.log(Level.WARNING, "Could not close history database.");
+            }
+        }
+    }
+
+    /**
+     * Write a batch in one transaction, creating the partitions it needs.
+     */
+    private void writeBatch(Connection connection, List<TimedLocationObject> batch) throws SQLException {
+        Map<String, List<TimedLocationObject>> byPartition = new HashMap<>();
+        for (TimedLocationObject locationObject : batch)
+            byPartition.computeIfAbsent(partitionOf(locationObject.getTime()), p -> new ArrayList<>()).add(locationObject);
+
+        connection.setAutoCommit(false);
+        try {
+            for (Map.Entry<String, List<TimedLocationObject>> entry : byPartition.entrySet()) {
+                String partition = entry.getKey();
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("CREATE TABLE IF NOT EXISTS " + partition + " (\n" +
+                            " key text,\n" +
+                            " time integer,\n" +
+                            " latitude real,\n" +
+                            " longitude real\n" +
+                            ");");
+                    statement.execute("CREATE INDEX IF NOT EXISTS " + partition + "_key_time ON " + partition
+                            + " (key, time)");
+                }
+
+                try (PreparedStatement insert = connection.prepareStatement(
+                        "INSERT INTO " + partition + "(key, time, latitude, longitude) VALUES(?,?,?,?)")) {
+                    for (TimedLocationObject locationObject : entry.getValue()) {
+                        insert.setString(1, locationObject.getKey());
+                        insert.setLong(2, locationObject.getTime());
+                        insert.setDouble(3, locationObject.getLatitude());
+                        insert.setDouble(4, locationObject.getLongitude());
+                        insert.addBatch();
+                    }
+                    insert.executeBatch();
+                }
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Find the recorded locations of a key within a time window, oldest first.
+     *
+     * @param key the unique identifier
+     * @param from start of the window, inclusive, in milliseconds since the epoch
+     * @param to end of the window, exclusive, in milliseconds since the epoch
+     * @return the recorded locations
+     * @throws SQLException if the history database cannot be accessed
+     */
+    public List<TimedLocationObject> findHistory(String key, long from, long to) throws SQLException {
+        List<TimedLocationObject> locationObjects = new ArrayList<>();
+        if (from >= to) return locationObjects;
+
+        try (Connection connection = DriverManager.getConnection(dbUrl)) {
+            // only the existing partitions, so a wide window costs no more than the partitions it covers
+            List<String> partitions = listPartitions(connection);
+            Collections.sort(partitions);
+
+            for (String partition : partitions) {
+                long hour = hourOf(partition);
+                if (hour >= to || hour + PARTITION_MILLIS <= from) continue;
+
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "SELECT key, time, latitude, longitude FROM " + partition
+                                + " WHERE key = ? AND time >= ? AND time < ? ORDER BY time")) {
+                    statement.setString(1, key);
+                    statement.setLong(2, from);
+                    statement.setLong(3, to);
+                    ResultSet resultSet = statement.executeQuery();
+                    while (resultSet.next())
+                        locationObjects.add(new TimedLocationObject(resultSet.getString("key"), resultSet.getDouble("latitude"),
+                                resultSet.getDouble("longitude"), resultSet.getLong("time")));
+                }
+            }
+        }
+
+        return locationObjects;
+    }
+
+    /**
+     * Drop every partition that ends at or before the given time, each with a single {@code DROP TABLE}.
+     *
+     * @param time cut-off in milliseconds since the epoch, the partition containing it is kept
+     * @return number of partitions dropped
+     * @throws SQLException if the history database cannot be accessed
+     */
+    public int dropPartitionsBefore(long time) throws SQLException {
+        try (Connection connection = DriverManager.getConnection(dbUrl)) {
+            return dropPartitionsBefore(connection, time);
+        }
+    }
+
+    private int dropPartitionsBefore(Connection connection, long time) throws SQLException {
+        // partition names sort like the hours they hold
+        String cutoff = partitionOf(time);
+        int count = 0;
+        for (String partition : listPartitions(connection)) {
+            if (partition.compareTo(cutoff) < 0) {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("DROP TABLE IF EXISTS " + partition);
+                }
+                logger.log(Level.INFO, "Dropped history partition " + partition);
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    private List<String> listPartitions(Connection connection) throws SQLException {
+        List<String> partitions = new ArrayList<>();
+        try (Statement statement = connection.createStatement()) {
+            ResultSet resultSet = statement.executeQuery(
+                    "SELECT name FROM sqlite_master WHERE type = 'table' AND name LIKE '" + PARTITION_PREFIX + "%'");
+            while (resultSet.next())
+                partitions.add(resultSet.getString("name"));
+        }
+        return partitions;
+    }
+
+    private static String partitionOf(long time) {
+        return PARTITION_PREFIX + PARTITION_FORMAT.format(Instant.ofEpochMilli(time));
+    }
+
+    /**
+     * @return start of the hour held by a partition, in milliseconds since the epoch
+     */
+    private static long hourOf(String partition) {
+        return ZonedDateTime.parse(partition.substring(PARTITION_PREFIX.length()), PARTITION_FORMAT).toInstant().toEpochMilli();
+    }
+
+    /**
+     * Stop taking updates, write what is still queued and stop the writer.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
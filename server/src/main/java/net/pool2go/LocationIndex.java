@@ -0,0 +1,140 @@
+package net.pool2go;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * <p>The latest location of every key, kept in memory and bucketed by {@link ClusterMap} cell so a neighbour search
+ * only looks at the few cells around a location instead of every key.</p>
+ *
+ * <p>Safe to update from several threads at once, which is what lets a {@link LocationSnapshot} be loaded in
+ * parallel, as long as the same key is not put from two threads at once.</p>
+ */
+public class LocationIndex {
+
+    private final Map<String, LocationObject> locations;
+    private final Map<Long, Set<String>> cells;
+
+    public LocationIndex() {
+        locations = new ConcurrentHashMap<>();
+        cells = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Make a location the latest for its key, moving the key to its new cell if needed.
+     *
+     * @param key the unique identifier
+     * @param latitude latitude of the location
+     * @param longitude longitude of the location
+     */
+    public void put(String key, double latitude, double longitude) {
+        LocationObject previous = locations.put(key, new LocationObject(key, latitude, longitude));
+
+        long cell = ClusterMap.cellOf(latitude, longitude);
+        if (previous != null) {
+            long previousCell = ClusterMap.cellOf(previous.getLatitude(), previous.getLongitude());
+            if (previousCell == cell) return;
+            Set<String> keys = cells.get(previousCell);
+            if (keys != null) keys.remove(key);
+        }
+        cells.computeIfAbsent(cell, c -> ConcurrentHashMap.newKeySet()).add(key);
+    }
+
+    /**
+     * Forget the location of a key.
+     *
+     * @param key the unique identifier
+     */
+    public void remove(String key) {
+        LocationObject previous = locations.remove(key);
+        if (previous == null) return;
+        Set<String> keys = cells.get(ClusterMap.cellOf(previous.getLatitude(), previous.getLongitude()));
+        if (keys != null) keys.remove(key);
+    }
+
+    /**
+     * Find every location falling into a cell.
+     *
+     * @param cell the cell, see {@link ClusterMap#cellOf(double, double)}
+     * @param locationObjects the locations found are added here, with their own keys
+     */
+    public void findInCell(long cell, List<LocationObject> locationObjects) {
+        Set<String> keys = cells.get(cell);
+        if (keys == null) return;
+        for (String key : keys) {
+            LocationObject locationObject = locations.get(key);
+            if (locationObject != null) locationObjects.add(locationObject);
+        }
+    }
+
+    /**
+     * <p>Find the locations within 200 meters of a given location that do not have its key. Matches the Server's SQLite
+     * search: the found locations carry the key of the given location, and if nothing is found the list is cleared.</p>
+     *
+     * @param locationObject the location to compare to
+     * @param locationObjects if a close location is found, put it in here
+     */
+    public void findNearest(LocationObject locationObject, ArrayList<LocationObject> locationObjects) {
+        int found = 0;
+
+        // the search area is a 0.01 degree square, one cell wide, so its corners cover every cell it touches
+        long[] searched = new long[4];
+        int cellCount = 0;
+        for (double dLat : new double[]{-0.005, 0.005}) {
+            for (double dLng : new double[]{-0.005, 0.005}) {
+                long cell = ClusterMap.cellOf(locationObject.getLatitude() + dLat, locationObject.getLongitude() + dLng);
+                boolean seen = false;
+                for (int i = 0; i < cellCount; ++i) seen |= searched[i] == cell;
+                if (seen) continue;
+                searched[cellCount++] = cell;
+
+                Set<String> keys = cells.get(cell);
+                if (keys == null) continue;
+                for (String key : keys) {
+                    if (key.equals(locationObject.getKey())) continue;
+                    LocationObject candidate = locations.get(key);
+                    if (candidate == null) continue;
+
+                    // https://en.wikipedia.org/wiki/Decimal_degrees
+                    // 0.005 ~ 200 meters
+                    if (Math.abs(candidate.getLatitude() - locationObject.getLatitude()) < 0.005
+                            && Math.abs(candidate.getLongitude() - locationObject.getLongitude()) < 0.005) {
+                        locationObjects.add(new LocationObject(locationObject.getKey(),
+                                candidate.getLatitude(), candidate.getLongitude()));
+                        ++found;
+                    }
+                }
+            }
+        }
+
+        if (found == 0) locationObjects.clear();
+    }
+
+    /**
+     * Visit the latest location of every key. Locations put while visiting may or may not be seen.
+     *
+     * @param action called with each location
+     */
+    public void forEach(Consumer<LocationObject> action) {
+        locations.values().forEach(action);
+    }
+
+    /**
+     * @return number of keys with a location
+     */
+    public int size() {
+        return locations.size();
+    }
+
+    /**
+     * Forget every location.
+     */
+    public void clear() {
+        locations.clear();
+        cells.clear();
+    }
+}
@@ -0,0 +1,160 @@
+package net.pool2go;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * <p>A compact binary snapshot of a {@link LocationIndex}, used to bring a Server back up without reading the whole
+ * Locations table through JDBC.</p>
+ *
+ * <p>The file is laid out as:
+ * <ul>
+ *     <li>header: magic number and format version (int, int)</li>
+ *     <li>records: key length (int), UTF-8 key, latitude and longitude (double)</li>
+ *     <li>chunk table: the file offset of every {@link #CHUNK_RECORDS}th record (long)</li>
+ *     <li>footer: last Locations version covered (long), record count (int), chunk count (int), chunk table offset (long)
+ *     and the magic number again (int)</li>
+ * </ul></p>
+ *
+ * <p>The chunk table lets every chunk be mapped and decoded into the index on its own thread. A snapshot is written to
+ * a temporary file and moved into place, so a crash while writing leaves the previous snapshot intact.</p>
+ */
+public class LocationSnapshot {
+
+    private static final int MAGIC = 0x50324753; // "P2GS"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 8;
+    private static final int FOOTER_SIZE = 28;
+    private static final int CHUNK_RECORDS = 4096;
+
+    private LocationSnapshot() {
+    }
+
+    /**
+     * Write a snapshot of an index, replacing any previous snapshot at the same path.
+     *
+     * @param file where to write the snapshot
+     * @param index the locations to write
+     * @param lastVersion highest Locations version whose change is guaranteed to be in the index
+     * @return number of locations written
+     * @throws IOException could not write or move the snapshot file
+     */
+    public static int write(File file, LocationIndex index, long lastVersion) throws IOException {
+        File temporary = new File(file.getPath() + ".tmp");
+        List<Long> chunks = new ArrayList<>();
+        int[] count = {0};
+
+        try (FileOutputStream fileOut = new FileOutputStream(temporary);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            long[] position = {HEADER_SIZE};
+            try {
+                index.forEach(locationObject -> {
+                    byte[] key = locationObject.getKey().getBytes(StandardCharsets.UTF_8);
+                    if (count[0] % CHUNK_RECORDS == 0) chunks.add(position[0]);
+                    try {
+                        out.writeInt(key.length);
+                        out.write(key);
+                        out.writeDouble(locationObject.getLatitude());
+                        out.writeDouble(locationObject.getLongitude());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    position[0] += 4 + key.length + 16;
+                    ++count[0];
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+
+            for (long chunk : chunks) out.writeLong(chunk);
+
+            out.writeLong(lastVersion);
+            out.writeInt(count[0]);
+            out.writeInt(chunks.size());
+            out.writeLong(position[0]);
+            out.writeInt(MAGIC);
+            out.flush();
+            fileOut.getFD().sync();
+        }
+
+        Files.move(temporary.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count[0];
+    }
+
+    /**
+     * Load a snapshot into an index, decoding its chunks in parallel.
+     *
+     * @param file the snapshot to read
+     * @param index where to put the locations
+     * @return highest Locations version covered by the snapshot, newer changes have to be replayed from the database
+     * @throws IOException could not read the file, or it is not a complete snapshot
+     */
+    public static long read(File file, LocationIndex index) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            FileChannel channel = randomAccessFile.getChannel();
+            long size = channel.size();
+            if (size < HEADER_SIZE + FOOTER_SIZE) throw new IOException("Snapshot too small: " + file);
+
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION)
+                throw new IOException("Not a snapshot, or an unknown snapshot version: " + file);
+
+            ByteBuffer footer = channel.map(FileChannel.MapMode.READ_ONLY, size - FOOTER_SIZE, FOOTER_SIZE);
+            long lastVersion = footer.getLong();
+            int count = footer.getInt();
+            int chunkCount = footer.getInt();
+            long tableOffset = footer.getLong();
+            if (footer.getInt() != MAGIC || tableOffset + (long) chunkCount * 8 != size - FOOTER_SIZE)
+                throw new IOException("Snapshot is incomplete: " + file);
+
+            ByteBuffer table = channel.map(FileChannel.MapMode.READ_ONLY, tableOffset, (long) chunkCount * 8);
+            long[] chunks = new long[chunkCount + 1];
+            for (int i = 0; i < chunkCount; ++i) chunks[i] = table.getLong();
+            chunks[chunkCount] = tableOffset;
+
+            try {
+                IntStream.range(0, chunkCount).parallel().forEach(i -> {
+                    int records = i == chunkCount - 1 ? count - i * CHUNK_RECORDS : CHUNK_RECORDS;
+                    try {
+                        readChunk(channel.map(FileChannel.MapMode.READ_ONLY, chunks[i], chunks[i + 1] - chunks[i]),
+                                records, index);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } catch (RuntimeException e) {
+                throw new IOException("Snapshot is corrupt: " + file, e);
+            }
+
+            return lastVersion;
+        }
+    }
+
+    private static void readChunk(MappedByteBuffer buffer, int records, LocationIndex index) {
+        byte[] key = new byte[256];
+        for (int i = 0; i < records; ++i) {
+            int keyLength = buffer.getInt();
+            if (keyLength < 0 || keyLength > buffer.remaining())
+                throw new IllegalStateException("Bad key length: " + keyLength);
+            if (keyLength > key.length) key = new byte[keyLength];
+            buffer.get(key, 0, keyLength);
+            double latitude = buffer.getDouble();
+            double longitude = buffer.getDouble();
+            index.put(new String(key, 0, keyLength, StandardCharsets.UTF_8), latitude, longitude);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package net.pool2go;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * <p>A persistence engine a Server can use in place of its built-in SQLite database.</p>
+ *
+ * <p>Implementations only need to keep the latest location per key, and must be safe to call from the client and
+ * peer threads of a Server at the same time.</p>
+ *
+ * @see JournalLocationStore
+ */
+public interface LocationStore extends Closeable {
+
+    /**
+     * Store an updated location, replacing any earlier location with the same key.
+     *
+     * @param locationObject the updated location, with a key
+     * @throws IOException could not store the location
+     */
+    void insert(LocationObject locationObject) throws IOException;
+
+    /**
+     * Store a batch of updated locations. Engines that can write a batch cheaper than one location at a time should
+     * override this.
+     *
+     * @param locationObjects the updated locations, each with a key
+     * @throws IOException could not store the locations, some of them may have been stored
+     */
+    default void insertAll(List<LocationObject> locationObjects) throws IOException {
+        for (LocationObject locationObject : locationObjects)
+            insert(locationObject);
+    }
+
+    /**
+     * Store the locations of keys that have no location yet, and skip the others. Used when a cell is handed over from
+     * another node, whose copies must not replace newer updates already stored here.
+     *
+     * @param locationObjects the locations, each with a key
+     * @throws IOException could not store the locations, some of them may have been stored
+     */
+    void insertAllAbsent(List<LocationObject> locationObjects) throws IOException;
+
+    /**
+     * Remove the location of a key, if there is one.
+     *
+     * @param key the unique identifier
+     * @throws IOException could not remove the location
+     */
+    void remove(String key) throws IOException;
+
+    /**
+     * Visit the latest location of every key, each with its own key.
+     *
+     * @param action called with each location
+     */
+    void forEach(Consumer<LocationObject> action);
+
+    /**
+     * Find the locations within 200 meters of a given location that do not have its key. Behaves like the Server's
+     * SQLite search: if nothing is found, the list is cleared.
+     *
+     * @param locationObject the location to compare to
+     * @param locationObjects if a close location is found, put it in here
+     * @throws IOException could not search the stored locations
+     */
+    void findNearest(LocationObject locationObject, ArrayList<LocationObject> locationObjects) throws IOException;
+}
@@ -0,0 +1,218 @@
+package net.pool2go;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+
+/**
+ * <p>The internal protocol spoken between the nodes of a cluster. Kept deliberately small: every request is a single
+ * one-shot connection carrying one opcode byte and one location written with a DataOutputStream.</p>
+ *
+ * <p>Requests:
+ * <ul>
+ *     <li>{@link #OP_UPDATE}: store the location on the receiving node. Answered with a single status byte.</li>
+ *     <li>{@link #OP_NEIGHBOURS}: search the receiving node for locations near the given one. Answered with a status
+ *     byte, a count and that many locations.</li>
+ *     <li>{@link #OP_UPDATE_BATCH}: a count and that many locations instead of one, stored in a single batch write.
+ *     Answered with a single status byte.</li>
+ *     <li>{@link #OP_REMOVE}: a count and that many keys, to be removed from the receiving node because their latest
+ *     locations are stored by another node now. Answered with a single status byte.</li>
+ *     <li>{@link #OP_NEIGHBOURS_BATCH}: a count and that many locations to search near. Answered with a status byte
+ *     and, for every location in order, a count and that many locations.</li>
+ *     <li>{@link #OP_HAND_OFF}: a count and that many locations of a cell handed over to the receiving node. Only
+ *     keys the receiving node does not store yet are stored, and they are not recorded as history. Answered with a
+ *     single status byte.</li>
+ * </ul></p>
+ *
+ * @see ClusterMap
+ */
+final class PeerProtocol {
+
+    static final byte OP_UPDATE = 1;
+    static final byte OP_NEIGHBOURS = 2;
+    static final byte OP_UPDATE_BATCH = 3;
+    static final byte OP_REMOVE = 4;
+    static final byte OP_NEIGHBOURS_BATCH = 5;
+    static final byte OP_HAND_OFF = 6;
+
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_ERROR = 1;
+
+    static final int TIMEOUT_MILLIS = 2000;
+    /**
+     * How long a peer listener waits on a silent peer. Well below {@link #TIMEOUT_MILLIS}, so requests queued behind a
+     * stalled peer are still answered in time.
+     */
+    static final int IDLE_TIMEOUT_MILLIS = TIMEOUT_MILLIS / 4;
+
+    private PeerProtocol() {
+    }
+
+    /**
+     * Ask a peer to store a location it owns.
+     *
+     * @param peer address of the peer listener
+     * @param locationObject the updated location
+     * @throws IOException could not reach the peer, or the peer could not store the location
+     */
+    static void forwardUpdate(InetSocketAddress peer, LocationObject locationObject) throws IOException {
+        try (Socket socket = connect(peer)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeByte(OP_UPDATE);
+            writeLocation(out, locationObject);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            if (in.readByte() != STATUS_OK)
+                throw new IOException("Peer " + peer + " could not store location.");
+        }
+    }
+
+    /**
+     * Ask a peer to store a batch of locations it owns.
+     *
+     * @param peer address of the peer listener
+     * @param locationObjects the updated locations
+     * @throws IOException could not reach the peer, or the peer could not store the locations
+     */
+    static void forwardUpdates(InetSocketAddress peer, List<LocationObject> locationObjects) throws IOException {
+        try (Socket socket = connect(peer)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeByte(OP_UPDATE_BATCH);
+            out.writeInt(locationObjects.size());
+            for (LocationObject locationObject : locationObjects)
+                writeLocation(out, locationObject);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            if (in.readByte() != STATUS_OK)
+                throw new IOException("Peer " + peer + " could not store batch of locations.");
+        }
+    }
+
+    /**
+     * Hand the locations of a cell over to its new owner. Keys the peer already stores are kept as they are there.
+     *
+     * @param peer address of the peer listener
+     * @param locationObjects the locations of the cell
+     * @throws IOException could not reach the peer, or the peer could not store the locations
+     */
+    static void handOff(InetSocketAddress peer, List<LocationObject> locationObjects) throws IOException {
+        try (Socket socket = connect(peer)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeByte(OP_HAND_OFF);
+            out.writeInt(locationObjects.size());
+            for (LocationObject locationObject : locationObjects)
+                writeLocation(out, locationObject);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            if (in.readByte() != STATUS_OK)
+                throw new IOException("Peer " + peer + " could not take over locations.");
+        }
+    }
+
+    /**
+     * Ask a peer to remove keys whose latest locations it no longer stores.
+     *
+     * @param peer address of the peer listener
+     * @param keys the keys to remove
+     * @throws IOException could not reach the peer, or the peer could not remove the keys
+     */
+    static void removeLocations(InetSocketAddress peer, List<String> keys) throws IOException {
+        try (Socket socket = connect(peer)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeByte(OP_REMOVE);
+            out.writeInt(keys.size());
+            for (String key : keys)
+                out.writeUTF(key);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            if (in.readByte() != STATUS_OK)
+                throw new IOException("Peer " + peer + " could not remove locations.");
+        }
+    }
+
+    /**
+     * Ask a peer for the locations it stores near a given location.
+     *
+     * @param peer address of the peer listener
+     * @param locationObject the location to compare to
+     * @param locationObjects any close locations found by the peer are added here
+     * @throws IOException could not reach the peer, or the peer could not search its database
+     */
+    static void queryNeighbours(InetSocketAddress peer, LocationObject locationObject,
+                                List<LocationObject> locationObjects) throws IOException {
+        try (Socket socket = connect(peer)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeByte(OP_NEIGHBOURS);
+            writeLocation(out, locationObject);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            if (in.readByte() != STATUS_OK)
+                throw new IOException("Peer " + peer + " could not search for neighbours.");
+            int count = in.readInt();
+            for (int i = 0; i < count; ++i)
+                locationObjects.add(readLocation(in));
+        }
+    }
+
+    /**
+     * Ask a peer for the locations it stores near each location of a batch, in one request.
+     *
+     * @param peer address of the peer listener
+     * @param locationObjects the locations to compare to
+     * @param found one list per location, in the same order; close locations found by the peer are added to them
+     * @throws IOException could not reach the peer, or the peer could not search its database
+     */
+    static void queryNeighboursBatch(InetSocketAddress peer, List<LocationObject> locationObjects,
+                                     List<? extends List<LocationObject>> found) throws IOException {
+        try (Socket socket = connect(peer)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeByte(OP_NEIGHBOURS_BATCH);
+            out.writeInt(locationObjects.size());
+            for (LocationObject locationObject : locationObjects)
+                writeLocation(out, locationObject);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            if (in.readByte() != STATUS_OK)
+                throw new IOException("Peer " + peer + " could not search for neighbours of a batch.");
+            for (List<LocationObject> nearest : found) {
+                int count = in.readInt();
+                for (int i = 0; i < count; ++i)
+                    nearest.add(readLocation(in));
+            }
+        }
+    }
+
+    private static Socket connect(InetSocketAddress peer) throws IOException {
+        Socket socket = new Socket();
+        socket.connect(peer, TIMEOUT_MILLIS);
+        socket.setSoTimeout(TIMEOUT_MILLIS);
+        return socket;
+    }
+
+    /**
+     * Write a location, the key may be null.
+     */
+    static void writeLocation(DataOutputStream out, LocationObject locationObject) throws IOException {
+        out.writeBoolean(locationObject.getKey() != null);
+        if (locationObject.getKey() != null) out.writeUTF(locationObject.getKey());
+        out.writeDouble(locationObject.getLatitude());
+        out.writeDouble(locationObject.getLongitude());
+    }
+
+    /**
+     * Read a location written by {@link #writeLocation(DataOutputStream, LocationObject)}.
+     */
+    static LocationObject readLocation(DataInputStream in) throws IOException {
+        String key = in.readBoolean() ? in.readUTF() : null;
+        double latitude = in.readDouble();
+        double longitude = in.readDouble();
+        return new LocationObject(key, latitude, longitude);
+    }
+}
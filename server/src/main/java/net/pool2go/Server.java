@@ -1,12 +1,24 @@
 package net.pool2go;
 
 import java.io.*;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.*;
 
 /**
@@ -50,17 +62,66 @@ import java.util.logging.*;
  *     </ul>
  * </ul></p>
  *
+ * <p>Several Servers can act as one service by sharing a {@link ClusterMap}. Each node then only stores the locations
+ * falling into the cells it owns: an update for a cell owned by another node is forwarded to that node, and a neighbour
+ * search reaching into cells owned by other nodes asks them over the internal {@link PeerProtocol}. Clients do not notice
+ * any of this and may talk to any node. When a key moves to a cell owned by another node, the node that stored it before
+ * is told to remove it, see {@link #handOffCell(long)} for cells moving to another node.</p>
+ *
+ * <p>Instead of the SQLite database, a Server can be given another persistence engine in the form of a
+ * {@link LocationStore}, such as the memory-mapped {@link JournalLocationStore}.</p>
+ *
+ * <p>With SQLite, {@link #enableSnapshots(File, long)} keeps the locations in memory as well and periodically writes
+ * them to a binary {@link LocationSnapshot}, so a restarted Server only has to replay the rows updated since the last
+ * snapshot. To make that possible, enabling snapshots adds a version column and triggers to the Locations table that
+ * stamp every changed row from an ever-growing counter. Databases that never had snapshots enabled are left as they
+ * are.</p>
+ *
+ * <p>A gateway relaying the positions of many devices can send a single {@link LocationBatch} instead of a
+ * LocationObject after the handshake. The batch is stored in one write, and answered with a LocationBatch holding one
+ * neighbour, or the out-of-bounds location, per device in the same order. Each device in the batch should carry its own
+ * key, devices without one get the gateway's key followed by their position in the batch.</p>
+ *
+ * <p>{@link #enableHistory(LocationHistory)} additionally appends every update stored on this node to an hourly
+ * partitioned {@link LocationHistory}, written in the background off the request path.</p>
+ *
+ * <p>For clients that only push their position, {@link #enableDatagrams(int, byte[])} opens a UDP endpoint taking
+ * signed {@link LocationDatagram}s into the same write path, without any handshake.</p>
+ *
  * @see LocationObject
+ * @see ClusterMap
  */
 public class Server implements Runnable {
 
     private static final double OUT_OF_BOUNDS_LATITUDE = 360;
     private static final double OUT_OF_BOUNDS_LONGITUDE = 360;
+    private static final int MAX_BATCH_SIZE = 10000;
+
+    /**
+     * Prefix of the keys datagram locations are stored under, see {@link #enableDatagrams(int, byte[])}.
+     */
+    public static final String DATAGRAM_KEY_PREFIX = "datagram | ";
+    private static final String SNAPSHOT_INSERTED_TRIGGER = "Locations_snapshot_inserted";
+    private static final String SNAPSHOT_UPDATED_TRIGGER = "Locations_snapshot_updated";
+    private static final String SNAPSHOT_REMOVED_TRIGGER = "Locations_snapshot_removed";
+
+    private static boolean loggerConfigured;
 
     private ServerSocket listener;
     private Logger logger;
     private String dbUrl;
     private Connection connection;
+    private LocationStore store;
+    private ClusterMap cluster;
+    private int nodeId;
+    private ServerSocket peerListener;
+    private LocationIndex index;
+    private File snapshotFile;
+    private ScheduledExecutorService snapshotter;
+    private DatagramSocket datagramSocket;
+    private byte[] datagramSecret;
+    private DatagramReplayGuard datagramGuard;
+    private volatile LocationHistory history;
 
     private static final LocationObject OUT_OF_BOUNDS_LOCATION = new LocationObject(OUT_OF_BOUNDS_LATITUDE, OUT_OF_BOUNDS_LONGITUDE);
 
@@ -95,6 +156,91 @@ public class Server implements Runnable {
         logger.log(Level.CONFIG, "Server listener created on port: " + port);
     }
 
+    /**
+     * <p>Create a Server running as one node of a cluster. Besides the client ServerSocket, a peer listener is opened on
+     * the port registered for this node in the ClusterMap.</p>
+     *
+     * <p>Every node should be given its own database, it only stores the locations of the cells it owns.</p>
+     *
+     * @param port port for the Server to run on
+     * @param databaseUrl full path and filename for the database
+     * @param cluster cell ownership and peer addresses shared by all nodes
+     * @param nodeId id of this node in the cluster
+     * @throws IOException generic exception when some exception occurred when building the server parts
+     */
+    public Server(int port, String databaseUrl, ClusterMap cluster, int nodeId) throws IOException {
+        this(port, databaseUrl);
+        joinCluster(cluster, nodeId);
+    }
+
+    /**
+     * Create a ServerSocket on a given port, and keep locations in the given persistence engine instead of SQLite.
+     *
+     * @param port port for the Server to run on
+     * @param store persistence engine for the locations, closed when the Server stops
+     * @throws IOException generic exception when some exception occurred when building the server parts
+     */
+    public Server(int port, LocationStore store) throws IOException {
+        try {
+            loggerFactory();
+        } catch (IOException e) {
+            throw new IOException("Could not build Server Logger.");
+        }
+
+        this.store = store;
+        logger.log(Level.CONFIG, "Using persistence engine: " + store.getClass().getSimpleName());
+
+        listener = new ServerSocket(port);
+        logger.log(Level.CONFIG, "Server listener created on port: " + port);
+    }
+
+    /**
+     * Create a Server running as one node of a cluster, keeping locations in the given persistence engine.
+     *
+     * @param port port for the Server to run on
+     * @param store persistence engine for the locations of the cells this node owns
+     * @param cluster cell ownership and peer addresses shared by all nodes
+     * @param nodeId id of this node in the cluster
+     * @throws IOException generic exception when some exception occurred when building the server parts
+     * @see #Server(int, String, ClusterMap, int)
+     */
+    public Server(int port, LocationStore store, ClusterMap cluster, int nodeId) throws IOException {
+        this(port, store);
+        joinCluster(cluster, nodeId);
+    }
+
+    /**
+     * Open the peer listener on the port registered for this node in the ClusterMap, and register the keys already
+     * stored on this node with it.
+     *
+     * @throws IOException could not open the peer listener or read the stored keys
+     */
+    private void joinCluster(ClusterMap cluster, int nodeId) throws IOException {
+        this.cluster = cluster;
+        this.nodeId = nodeId;
+
+        int peerPort = cluster.getPeerAddress(nodeId).getPort();
+        try {
+            peerListener = new ServerSocket(peerPort);
+        } catch (IOException e) {
+            listener.close();
+            throw new IOException("Could not open peer listener on port: " + peerPort);
+        }
+        logger.log(Level.CONFIG, "Node " + nodeId + " peer listener created on port: " + peerPort);
+
+        // tell the cluster which keys are stored here, so they are removed here once they move to another node
+        try {
+            if (store != null)
+                store.forEach(locationObject -> cluster.addKey(locationObject.getKey(), nodeId));
+            else
+                readLocationIndex().forEach(locationObject -> cluster.addKey(locationObject.getKey(), nodeId));
+        } catch (SQLException e) {
+            peerListener.close();
+            listener.close();
+            throw new IOException("Could not read the keys stored on node " + nodeId);
+        }
+    }
+
     /**
      * Connect to the database and create the Locations table.
      *
@@ -124,70 +270,160 @@ public class Server implements Runnable {
     }
 
     /**
-     * Build a logger. Requires read/write permissions in the directory this is in.
+     * Build a logger. Requires read/write permissions in the directory this is in. Every Server in the JVM, such as the
+     * nodes of a cluster, shares the one logger, so its handlers are only added by the first.
      *
      * @throws IOException cannot write files to the current working directory
      */
     private void loggerFactory() throws IOException {
-        Handler fileHandler = new FileHandler("logger." + this.getClass().getSimpleName() + ".log");
-        fileHandler.setFormatter(new SimpleFormatter());
-        Handler consoleHandler = new ConsoleHandler();
-
         logger = Logger.getLogger(this.getClass().getSimpleName());
-        logger.addHandler(consoleHandler);
-        logger.addHandler(fileHandler);
 
-        consoleHandler.setLevel(Level.WARNING);
-        fileHandler.setLevel(Level.ALL);
-        logger.setLevel(Level.ALL);
+        synchronized (Server.class) {
+            if (loggerConfigured) return;
+
+            Handler fileHandler = new FileHandler("logger." + this.getClass().getSimpleName() + ".log");
+            fileHandler.setFormatter(new SimpleFormatter());
+            Handler consoleHandler = new ConsoleHandler();
+
+            logger.addHandler(consoleHandler);
+            logger.addHandler(fileHandler);
+
+            consoleHandler.setLevel(Level.WARNING);
+            fileHandler.setLevel(Level.ALL);
+            logger.setLevel(Level.ALL);
+            loggerConfigured = true;
+        }
 
         logger.log(Level.CONFIG, "Server logger configured");
     }
 
     /**
-     * Insert an updated location. Search for an existing record with the key; if none found, insert a new record,
-     * if a key exists, update the record.
+     * Insert an updated location, see {@link #findAndInsertLocations(List)}.
      *
      * @param locationObject the updated location
      * @throws SQLException could not write to the database
      */
     private void findAndInsertLocation(LocationObject locationObject) throws SQLException {
-        connection = DriverManager.getConnection(dbUrl);
-
-        // find an existing location entry with key
-        String sqlFindExistingKey = "SELECT key FROM Locations WHERE key = ?";
-        PreparedStatement statement = connection.prepareStatement(sqlFindExistingKey);
-        statement.setString(1, locationObject.getKey());
-        ResultSet resultSet = statement.executeQuery();
+        findAndInsertLocations(Collections.singletonList(locationObject));
+    }
 
-        // easier to check if there is a first entry
-        // https://stackoverflow.com/questions/867194/java-resultset-how-to-check-if-there-are-any-results
-        // isBeforeFirst will return true only if there was any records retrieved from a query
-        // https://stackoverflow.com/questions/26324603/jdbc-returns-an-empty-resultset-rs-isbeforefirst-true-although-the-table
-        if (!resultSet.isBeforeFirst()) { // no location entry for key, insert a new record
-            String sqlInsertLocation = "INSERT INTO Locations(key, latitude, longitude) VALUES(?,?,?)";
+    /**
+     * Insert a batch of updated locations. Search for an existing record with each key; if none found, insert a new
+     * record, if a key exists, update the record. Runs in a single transaction so the whole batch costs one commit.
+     *
+     * @param locationObjects the updated locations
+     * @throws SQLException could not write to the database, nothing of the batch was written
+     */
+    private synchronized void findAndInsertLocations(List<LocationObject> locationObjects) throws SQLException {
+        connection = DriverManager.getConnection(dbUrl);
 
-            statement = connection.prepareStatement(sqlInsertLocation);
-            statement.setString(1, locationObject.getKey());
-            statement.setDouble(2, locationObject.getLatitude());
-            statement.setDouble(3, locationObject.getLongitude());
+        try {
+            connection.setAutoCommit(false);
 
-            statement.executeUpdate();
-        } else { // if an entry exists, update it
-            String sqlUpdateExistingRecord = "UPDATE Locations\n" +
+            PreparedStatement findStatement = connection.prepareStatement("SELECT key FROM Locations WHERE key = ?");
+            PreparedStatement insertStatement = connection.prepareStatement(
+                    "INSERT INTO Locations(key, latitude, longitude) VALUES(?,?,?)");
+            PreparedStatement updateStatement = connection.prepareStatement("UPDATE Locations\n" +
                     "SET latitude = ?,\n" +
                     "    longitude = ?\n" +
-                    "WHERE key = ?";
+                    "WHERE key = ?");
 
-            statement = connection.prepareStatement(sqlUpdateExistingRecord);
-            statement.setDouble(1, locationObject.getLatitude());
-            statement.setDouble(2, locationObject.getLongitude());
-            statement.setString(3, locationObject.getKey());
+            for (LocationObject locationObject : locationObjects) {
+                findStatement.setString(1, locationObject.getKey());
+                ResultSet resultSet = findStatement.executeQuery();
+                boolean exists = resultSet.next();
+                resultSet.close();
 
-            statement.executeUpdate();
+                if (!exists) {
+                    insertStatement.setString(1, locationObject.getKey());
+                    insertStatement.setDouble(2, locationObject.getLatitude());
+                    insertStatement.setDouble(3, locationObject.getLongitude());
+                    insertStatement.executeUpdate();
+                } else {
+                    updateStatement.setDouble(1, locationObject.getLatitude());
+                    updateStatement.setDouble(2, locationObject.getLongitude());
+                    updateStatement.setString(3, locationObject.getKey());
+                    updateStatement.executeUpdate();
+                }
+            }
+
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.close();
         }
 
-        connection.close();
+        if (index != null)
+            for (LocationObject locationObject : locationObjects)
+                index.put(locationObject.getKey(), locationObject.getLatitude(), locationObject.getLongitude());
+    }
+
+    /**
+     * Insert the locations of keys without a record in a single transaction, and skip the others.
+     *
+     * @param locationObjects the locations
+     * @throws SQLException could not write to the database, nothing was inserted
+     */
+    private synchronized void insertAbsentLocations(List<LocationObject> locationObjects) throws SQLException {
+        connection = DriverManager.getConnection(dbUrl);
+        List<LocationObject> inserted = new ArrayList<>();
+
+        try {
+            connection.setAutoCommit(false);
+
+            PreparedStatement statement = connection.prepareStatement(
+                    "INSERT OR IGNORE INTO Locations(key, latitude, longitude) VALUES(?,?,?)");
+            for (LocationObject locationObject : locationObjects) {
+                statement.setString(1, locationObject.getKey());
+                statement.setDouble(2, locationObject.getLatitude());
+                statement.setDouble(3, locationObject.getLongitude());
+                if (statement.executeUpdate() > 0) inserted.add(locationObject);
+            }
+
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.close();
+        }
+
+        if (index != null)
+            for (LocationObject locationObject : inserted)
+                index.put(locationObject.getKey(), locationObject.getLatitude(), locationObject.getLongitude());
+    }
+
+    /**
+     * Delete the records of some keys in a single transaction. Keys without a record are skipped.
+     *
+     * @param keys the keys to delete
+     * @throws SQLException could not write to the database, nothing was deleted
+     */
+    private synchronized void deleteLocations(List<String> keys) throws SQLException {
+        connection = DriverManager.getConnection(dbUrl);
+
+        try {
+            connection.setAutoCommit(false);
+
+            PreparedStatement statement = connection.prepareStatement("DELETE FROM Locations WHERE key = ?");
+            for (String key : keys) {
+                statement.setString(1, key);
+                statement.executeUpdate();
+            }
+
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.close();
+        }
+
+        if (index != null)
+            for (String key : keys)
+                index.remove(key);
     }
 
     /**
@@ -196,14 +432,19 @@ public class Server implements Runnable {
      *
      * <p>If no locations are found, clear the list.</p>
      *
-     * <p>TODO: given time, find a way to speed up this process.</p>
+     * <p>When snapshots are enabled, the locations kept in memory are searched instead of the database.</p>
      *
      * @param locationObject the location to compare to
      * @param locationObjects if a close location is found, put it in here
      * @throws SQLException if the database cannot be accessed
      */
-    private void findNearestLocations(LocationObject locationObject,
-                                      ArrayList<LocationObject> locationObjects) throws SQLException {
+    private synchronized void findNearestLocations(LocationObject locationObject,
+                                                   ArrayList<LocationObject> locationObjects) throws SQLException {
+        if (index != null) {
+            index.findNearest(locationObject, locationObjects);
+            return;
+        }
+
         connection = DriverManager.getConnection(dbUrl);
 
         String sqlGetAllRecordsNotOfClientKey = "SELECT key, latitude, longitude FROM Locations WHERE key <> ?";
@@ -236,6 +477,823 @@ public class Server implements Runnable {
         connection.close();
     }
 
+    /**
+     * <p>Keep the locations in memory and write them to a snapshot file every {@code intervalSeconds}, and once more when
+     * the Server stops. Only applies to the SQLite database, a LocationStore keeps its own state.</p>
+     *
+     * <p>The in-memory state is rebuilt right away: from the snapshot file if there is one, followed by the rows updated
+     * after it was written. If the snapshot is unreadable, or the Locations table was recreated since, every row is read
+     * from the database instead.</p>
+     *
+     * <p>Rows changed after a snapshot are found by their version: triggers, created here and dropped along with the
+     * table, take the next value of the one-row LocationsVersion counter on every insert, update and removal, and
+     * store it in the row's version column. Unlike rowids, which SQLite hands out again once the highest row is
+     * deleted, the counter never goes back. The triggers stay in the database, so changes made by a Server running
+     * without snapshots in between are still replayed. A missing trigger means the table was recreated, or never had
+     * snapshots enabled, and a counter below the snapshot's means the database was replaced; either way the snapshot
+     * cannot be trusted.</p>
+     *
+     * <p>Removed keys are recorded in the LocationsRemoved table with their version, so keys removed after a snapshot
+     * are removed from memory as well. Removals are forgotten once a snapshot without them is written.</p>
+     *
+     * @param snapshotFile where snapshots are read from and written to
+     * @param intervalSeconds time between two snapshots
+     * @throws IOException could not read the Locations table
+     */
+    public void enableSnapshots(File snapshotFile, long intervalSeconds) throws IOException {
+        if (store != null) throw new IllegalStateException("Snapshots only apply to the SQLite database.");
+
+        long start = System.currentTimeMillis();
+        this.snapshotFile = snapshotFile;
+        index = new LocationIndex();
+
+        long lastVersion = 0;
+        if (snapshotFile.exists()) {
+            try {
+                lastVersion = LocationSnapshot.read(snapshotFile, index);
+                logger.log(Level.INFO, "Loaded " + index.size() + " locations from snapshot in "
+                        + (System.currentTimeMillis() - start) + " ms.");
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not load snapshot " + snapshotFile + ", reading every row.", e);
+                index.clear();
+                lastVersion = 0;
+            }
+        }
+
+        try {
+            int replayed = replayLocations(lastVersion);
+            logger.log(Level.INFO, "Replayed " + replayed + " rows newer than the snapshot, " + index.size()
+                    + " locations ready in " + (System.currentTimeMillis() - start) + " ms.");
+        } catch (SQLException e) {
+            logger.log(Level.SEVERE, "Could not replay locations from database.");
+            index = null;
+            throw new IOException("Could not read Locations table.");
+        }
+
+        snapshotter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Server-node-" + nodeId + "-snapshots");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshotter.scheduleWithFixedDelay(this::writeSnapshot, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Put every row with a version above the given one into the in-memory index, in version order, and remove the keys
+     * removed since, after making sure the version triggers are in place. Holds the lock so no update can slip in
+     * between.
+     *
+     * @param lastVersion highest version already in the index
+     * @return number of rows replayed
+     * @throws SQLException if the database cannot be accessed
+     */
+    private synchronized int replayLocations(long lastVersion) throws SQLException {
+        connection = DriverManager.getConnection(dbUrl);
+
+        try (Statement statement = connection.createStatement()) {
+            ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM sqlite_master WHERE type = 'trigger' "
+                    + "AND name IN ('" + SNAPSHOT_INSERTED_TRIGGER + "', '" + SNAPSHOT_UPDATED_TRIGGER + "', '"
+                    + SNAPSHOT_REMOVED_TRIGGER + "')");
+            boolean triggered = resultSet.next() && resultSet.getInt(1) == 3;
+            resultSet.close();
+
+            if (!triggered) {
+                boolean versioned = false;
+                resultSet = statement.executeQuery("PRAGMA table_info(Locations)");
+                while (resultSet.next())
+                    versioned |= resultSet.getString("name").equals("version");
+                resultSet.close();
+
+                if (!versioned)
+                    statement.execute("ALTER TABLE Locations ADD COLUMN version integer");
+            }
+            statement.execute("CREATE INDEX IF NOT EXISTS Locations_version ON Locations(version)");
+            statement.execute("CREATE TABLE IF NOT EXISTS LocationsVersion ( version integer NOT NULL );");
+            statement.execute("INSERT INTO LocationsVersion(version) SELECT 0 WHERE NOT EXISTS (SELECT 1 FROM LocationsVersion)");
+            statement.execute("CREATE TABLE IF NOT EXISTS LocationsRemoved ( key text PRIMARY KEY, version integer NOT NULL );");
+
+            if (lastVersion > 0 && (!triggered || findVersion(statement) < lastVersion)) {
+                // the table was recreated after the snapshot, or the database was replaced, so it cannot be trusted
+                logger.log(Level.WARNING, "Locations table does not match the snapshot, reading every row.");
+                index.clear();
+                lastVersion = 0;
+            }
+
+            String sqlTakeVersion = "BEGIN\n" +
+                    "    UPDATE LocationsVersion SET version = version + 1;\n" +
+                    "    UPDATE Locations SET version = (SELECT version FROM LocationsVersion) WHERE rowid = NEW.rowid;\n" +
+                    "END";
+            statement.execute("CREATE TRIGGER IF NOT EXISTS " + SNAPSHOT_INSERTED_TRIGGER + "\n" +
+                    "AFTER INSERT ON Locations\n" + sqlTakeVersion);
+            statement.execute("CREATE TRIGGER IF NOT EXISTS " + SNAPSHOT_UPDATED_TRIGGER + "\n" +
+                    "AFTER UPDATE OF latitude, longitude ON Locations\n" + sqlTakeVersion);
+            statement.execute("CREATE TRIGGER IF NOT EXISTS " + SNAPSHOT_REMOVED_TRIGGER + "\n" +
+                    "AFTER DELETE ON Locations\n" +
+                    "BEGIN\n" +
+                    "    UPDATE LocationsVersion SET version = version + 1;\n" +
+                    "    INSERT OR REPLACE INTO LocationsRemoved(key, version)\n" +
+                    "    VALUES (OLD.key, (SELECT version FROM LocationsVersion));\n" +
+                    "END");
+
+            String sqlGetRecordsAfterVersion = "SELECT key, latitude, longitude FROM Locations WHERE version > ? ORDER BY version";
+            String sqlGetRemovedAfterVersion = "SELECT key FROM LocationsRemoved WHERE version > ?\n" +
+                    "AND key NOT IN (SELECT key FROM Locations)";
+            if (lastVersion == 0) {
+                // rows from before the triggers have no version yet
+                sqlGetRecordsAfterVersion = "SELECT key, latitude, longitude FROM Locations";
+            }
+
+            int replayed = 0;
+            try (PreparedStatement findRecords = connection.prepareStatement(sqlGetRecordsAfterVersion)) {
+                if (lastVersion > 0) findRecords.setLong(1, lastVersion);
+                resultSet = findRecords.executeQuery();
+                while (resultSet.next()) {
+                    index.put(resultSet.getString("key"), resultSet.getDouble("latitude"), resultSet.getDouble("longitude"));
+                    ++replayed;
+                }
+            }
+
+            if (lastVersion > 0) {
+                try (PreparedStatement findRemoved = connection.prepareStatement(sqlGetRemovedAfterVersion)) {
+                    findRemoved.setLong(1, lastVersion);
+                    resultSet = findRemoved.executeQuery();
+                    while (resultSet.next()) {
+                        index.remove(resultSet.getString("key"));
+                        ++replayed;
+                    }
+                }
+            }
+            return replayed;
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * @return current value of the LocationsVersion counter, every change up to it is in the in-memory index
+     * @throws SQLException if the database cannot be accessed
+     */
+    private synchronized long findVersion() throws SQLException {
+        connection = DriverManager.getConnection(dbUrl);
+
+        try (Statement statement = connection.createStatement()) {
+            return findVersion(statement);
+        } finally {
+            connection.close();
+        }
+    }
+
+    private static long findVersion(Statement statement) throws SQLException {
+        try (ResultSet resultSet = statement.executeQuery("SELECT MAX(version) FROM LocationsVersion")) {
+            return resultSet.next() ? resultSet.getLong(1) : 0;
+        }
+    }
+
+    /**
+     * Forget the removals up to a version, once a snapshot without them is written.
+     *
+     * @param lastVersion highest version to forget
+     * @throws SQLException if the database cannot be accessed
+     */
+    private synchronized void forgetRemovedLocations(long lastVersion) throws SQLException {
+        connection = DriverManager.getConnection(dbUrl);
+
+        try (PreparedStatement statement = connection.prepareStatement("DELETE FROM LocationsRemoved WHERE version <= ?")) {
+            statement.setLong(1, lastVersion);
+            statement.executeUpdate();
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Write the in-memory locations to the snapshot file. Updates made while writing may or may not end up in the
+     * snapshot, they are replayed from the database either way.
+     */
+    private void writeSnapshot() {
+        try {
+            long start = System.currentTimeMillis();
+            long lastVersion = findVersion();
+            int written = LocationSnapshot.write(snapshotFile, index, lastVersion);
+            forgetRemovedLocations(lastVersion);
+            logger.log(Level.INFO, "Wrote snapshot of " + written + " locations in "
+                    + (System.currentTimeMillis() - start) + " ms.");
+        } catch (SQLException e) {
+            logger.log(Level.SEVERE, "Could not read or update the version for snapshot.");
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not write snapshot " + snapshotFile, e);
+        }
+    }
+
+    /**
+     * <p>Open a UDP endpoint taking {@link LocationDatagram}s signed with the given secret, and start serving it on
+     * its own thread. An update is stored exactly like one received over a socket, and answered with a neighbour
+     * datagram if the client asked for one.</p>
+     *
+     * <p>Datagrams that are not signed with the secret are dropped without an answer, replays are dropped by a
+     * {@link DatagramReplayGuard} of this Server's own. Nodes of a cluster must share one guard instead, see
+     * {@link #enableDatagrams(int, byte[], DatagramReplayGuard)}.</p>
+     *
+     * <p>The secret is shared by every client, so a valid signature proves that a client sent the datagram, not which
+     * one: any client can send updates under any client id. Datagram locations are therefore stored under their
+     * client id prefixed with {@link #DATAGRAM_KEY_PREFIX}, so a datagram can never overwrite the location of a
+     * client connected over a socket, only that of another datagram client.</p>
+     *
+     * @param port UDP port for the endpoint
+     * @param secret secret shared with the clients
+     * @throws IOException could not open the UDP socket
+     */
+    public void enableDatagrams(int port, byte[] secret) throws IOException {
+        enableDatagrams(port, secret, new DatagramReplayGuard());
+    }
+
+    /**
+     * Open a UDP endpoint taking signed {@link LocationDatagram}s, see {@link #enableDatagrams(int, byte[])}, with
+     * replays checked by a guard shared with the other nodes of the cluster.
+     *
+     * @param port UDP port for the endpoint
+     * @param secret secret shared with the clients
+     * @param guard replay protection shared by every node taking datagrams
+     * @throws IOException could not open the UDP socket
+     */
+    public void enableDatagrams(int port, byte[] secret, DatagramReplayGuard guard) throws IOException {
+        datagramSecret = secret.clone();
+        datagramGuard = guard;
+        datagramSocket = new DatagramSocket(port);
+        logger.log(Level.CONFIG, "Datagram endpoint created on port: " + port);
+
+        Thread datagrams = new Thread(this::runDatagramListener, "Server-node-" + nodeId + "-datagrams");
+        datagrams.setDaemon(true);
+        datagrams.start();
+    }
+
+    /**
+     * Serve datagrams one at a time until the datagram socket is closed.
+     */
+    private void runDatagramListener() {
+        byte[] buffer = new byte[LocationDatagram.MAX_SIZE];
+
+        while (!datagramSocket.isClosed()) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                datagramSocket.receive(packet);
+            } catch (IOException e) {
+                if (!datagramSocket.isClosed())
+                    logger.log(Level.WARNING, "Failed to receive datagram.", e);
+                continue;
+            }
+
+            LocationDatagram datagram;
+            try {
+                datagram = LocationDatagram.decode(packet.getData(), packet.getLength(), datagramSecret);
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Dropped datagram from " + packet.getAddress() + ": " + e.getMessage());
+                continue;
+            }
+
+            if (datagram.getType() != LocationDatagram.TYPE_UPDATE
+                    || !datagramGuard.accept(datagram.getLocationObject().getKey(), datagram.getCounter())) {
+                logger.log(Level.FINE, "Dropped unexpected or replayed datagram from " + packet.getAddress());
+                continue;
+            }
+
+            // stored in a key namespace of their own, the shared secret does not tell clients apart
+            String clientId = datagram.getLocationObject().getKey();
+            LocationObject locationObject = new LocationObject(DATAGRAM_KEY_PREFIX + clientId,
+                    datagram.getLocationObject().getLatitude(), datagram.getLocationObject().getLongitude());
+            ArrayList<LocationObject> locationObjects = new ArrayList<>();
+            try {
+                storeLocation(locationObject);
+                if (datagram.isReplyWanted())
+                    findClusterNeighbours(locationObject, locationObjects);
+            } catch (SQLException | IOException e) {
+                logger.log(Level.SEVERE, "Could not store location from datagram.", e);
+                locationObjects.clear();
+            }
+
+            if (!datagram.isReplyWanted()) continue;
+
+            // same answer as over a socket: the first neighbour found, or the out-of-bounds location
+            LocationObject neighbour = locationObjects.isEmpty() ? OUT_OF_BOUNDS_LOCATION : locationObjects.get(0);
+            LocationDatagram reply = new LocationDatagram(LocationDatagram.TYPE_NEIGHBOUR, (byte) 0, datagram.getCounter(),
+                    new LocationObject(clientId, neighbour.getLatitude(), neighbour.getLongitude()));
+            byte[] data = reply.encode(datagramSecret);
+            try {
+                datagramSocket.send(new DatagramPacket(data, data.length, packet.getSocketAddress()));
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not send neighbour datagram to " + packet.getAddress(), e);
+            }
+        }
+    }
+
+    /**
+     * Append every location stored on this node to a history, on top of the live Locations. Recording only queues the
+     * update, the history is written by its own thread. The history is closed when the Server stops.
+     *
+     * @param history where to record the updates
+     */
+    public void enableHistory(LocationHistory history) {
+        this.history = history;
+    }
+
+    /**
+     * Insert an updated location into this node's persistence engine, the SQLite database unless a LocationStore was
+     * given.
+     *
+     * @param locationObject the updated location
+     * @throws SQLException could not write to the database
+     * @throws IOException could not write to the LocationStore
+     */
+    private void insertLocalLocation(LocationObject locationObject) throws SQLException, IOException {
+        if (store != null)
+            store.insert(locationObject);
+        else
+            findAndInsertLocation(locationObject);
+
+        if (history != null) history.record(locationObject);
+    }
+
+    /**
+     * Find the nearest locations stored in this node's persistence engine, see
+     * {@link #findNearestLocations(LocationObject, ArrayList)}.
+     *
+     * @param locationObject the location to compare to
+     * @param locationObjects if a close location is found, put it in here
+     * @throws SQLException if the database cannot be accessed
+     * @throws IOException if the LocationStore cannot be searched
+     */
+    private void findLocalNearestLocations(LocationObject locationObject,
+                                           ArrayList<LocationObject> locationObjects) throws SQLException, IOException {
+        if (store != null)
+            store.findNearest(locationObject, locationObjects);
+        else
+            findNearestLocations(locationObject, locationObjects);
+    }
+
+    /**
+     * Insert a batch of updated locations into this node's persistence engine, see
+     * {@link #insertLocalLocation(LocationObject)}.
+     *
+     * @param locationObjects the updated locations
+     * @throws SQLException could not write to the database
+     * @throws IOException could not write to the LocationStore
+     */
+    private void insertLocalLocations(List<LocationObject> locationObjects) throws SQLException, IOException {
+        if (store != null)
+            store.insertAll(locationObjects);
+        else
+            findAndInsertLocations(locationObjects);
+
+        if (history != null)
+            for (LocationObject locationObject : locationObjects)
+                history.record(locationObject);
+    }
+
+    /**
+     * Remove keys from this node's persistence engine.
+     *
+     * @param keys the keys to remove
+     * @throws SQLException could not write to the database
+     * @throws IOException could not write to the LocationStore
+     */
+    private void removeLocalLocations(List<String> keys) throws SQLException, IOException {
+        if (store != null) {
+            for (String key : keys)
+                store.remove(key);
+        } else {
+            deleteLocations(keys);
+        }
+    }
+
+    /**
+     * Remove keys from the node that stored them before they moved to another node. A failure is logged and skipped,
+     * the updates themselves were stored.
+     *
+     * @param node id of the node that stored the keys before
+     * @param keys the keys that moved
+     */
+    private void removeMovedLocations(int node, List<String> keys) {
+        try {
+            if (node == nodeId)
+                removeLocalLocations(keys);
+            else
+                PeerProtocol.removeLocations(cluster.getPeerAddress(node), keys);
+        } catch (SQLException | IOException e) {
+            logger.log(Level.WARNING, "Could not remove " + keys.size() + " moved keys from node " + node, e);
+        }
+    }
+
+    /**
+     * Store a batch of updated locations, each on the node owning its cell. The locations of every node are sent
+     * to it as one batch, and keys that moved away from a node are removed from it in one batch as well. Only the last
+     * location of a key in the batch is stored in a cluster, the nodes are not written in batch order.
+     *
+     * @param locationObjects the updated locations
+     * @throws SQLException could not write to the local database
+     * @throws IOException could not write to the local LocationStore or forward locations to an owning node
+     */
+    private void storeLocations(List<LocationObject> locationObjects) throws SQLException, IOException {
+        if (cluster == null) {
+            insertLocalLocations(locationObjects);
+            return;
+        }
+
+        Map<String, LocationObject> latest = new LinkedHashMap<>();
+        for (LocationObject locationObject : locationObjects)
+            latest.put(locationObject.getKey(), locationObject);
+
+        Map<Integer, List<LocationObject>> byOwner = new HashMap<>();
+        for (LocationObject locationObject : latest.values())
+            byOwner.computeIfAbsent(cluster.ownerOf(locationObject.getLatitude(), locationObject.getLongitude()),
+                    owner -> new ArrayList<>()).add(locationObject);
+
+        Map<Integer, List<String>> moved = new HashMap<>();
+        for (Map.Entry<Integer, List<LocationObject>> entry : byOwner.entrySet()) {
+            int owner = entry.getKey();
+            if (owner == nodeId)
+                insertLocalLocations(entry.getValue());
+            else
+                PeerProtocol.forwardUpdates(cluster.getPeerAddress(owner), entry.getValue());
+
+            for (LocationObject locationObject : entry.getValue()) {
+                int previous = cluster.moveKey(locationObject.getKey(), owner);
+                if (previous != -1 && previous != owner)
+                    moved.computeIfAbsent(previous, node -> new ArrayList<>()).add(locationObject.getKey());
+            }
+        }
+
+        for (Map.Entry<Integer, List<String>> entry : moved.entrySet())
+            removeMovedLocations(entry.getKey(), entry.getValue());
+    }
+
+    /**
+     * <p>Find one neighbour for every location of a batch, across the whole cluster.</p>
+     *
+     * <p>Every other node owning cells near any of the locations is asked once, with all the locations it has to
+     * search, instead of once per location.</p>
+     *
+     * @param locationObjects the locations to compare to
+     * @return for every location in order, the first neighbour found or the out-of-bounds location, with its key
+     * @throws SQLException if the local database cannot be accessed
+     * @throws IOException if the local LocationStore cannot be searched
+     */
+    private ArrayList<LocationObject> findBatchNeighbours(List<LocationObject> locationObjects)
+            throws SQLException, IOException {
+        List<ArrayList<LocationObject>> found = findLocalBatchNeighbours(locationObjects);
+
+        if (cluster != null) {
+            Map<Integer, List<Integer>> byOwner = new HashMap<>();
+            for (int i = 0; i < locationObjects.size(); ++i)
+                for (int owner : findRemoteOwners(locationObjects.get(i)))
+                    byOwner.computeIfAbsent(owner, node -> new ArrayList<>()).add(i);
+
+            for (Map.Entry<Integer, List<Integer>> entry : byOwner.entrySet()) {
+                List<LocationObject> queries = new ArrayList<>();
+                List<ArrayList<LocationObject>> results = new ArrayList<>();
+                for (int i : entry.getValue()) {
+                    queries.add(locationObjects.get(i));
+                    results.add(found.get(i));
+                }
+
+                try {
+                    PeerProtocol.queryNeighboursBatch(cluster.getPeerAddress(entry.getKey()), queries, results);
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Could not query node " + entry.getKey() + " for neighbours.", e);
+                }
+            }
+        }
+
+        ArrayList<LocationObject> neighbours = new ArrayList<>();
+        for (int i = 0; i < locationObjects.size(); ++i)
+            neighbours.add(found.get(i).isEmpty()
+                    ? new LocationObject(locationObjects.get(i).getKey(), OUT_OF_BOUNDS_LATITUDE, OUT_OF_BOUNDS_LONGITUDE)
+                    : found.get(i).get(0));
+
+        return neighbours;
+    }
+
+    /**
+     * <p>Find the nearest locations stored in this node's persistence engine for every location of a batch.</p>
+     *
+     * <p>Without an in-memory index, the SQLite database is read once for the whole batch instead of once per
+     * location.</p>
+     *
+     * @param locationObjects the locations to compare to
+     * @return for every location in order, the close locations found
+     * @throws SQLException if the database cannot be accessed
+     * @throws IOException if the LocationStore cannot be searched
+     */
+    private List<ArrayList<LocationObject>> findLocalBatchNeighbours(List<LocationObject> locationObjects)
+            throws SQLException, IOException {
+        LocationIndex localIndex = index;
+        if (store == null && localIndex == null) localIndex = readLocationIndex();
+
+        List<ArrayList<LocationObject>> found = new ArrayList<>();
+        for (LocationObject locationObject : locationObjects) {
+            ArrayList<LocationObject> nearest = new ArrayList<>();
+            if (localIndex != null)
+                localIndex.findNearest(locationObject, nearest);
+            else
+                findLocalNearestLocations(locationObject, nearest);
+            found.add(nearest);
+        }
+
+        return found;
+    }
+
+    /**
+     * Read every location in the database into a new index, for searching many locations with one read.
+     *
+     * @return the index
+     * @throws SQLException if the database cannot be accessed
+     */
+    private synchronized LocationIndex readLocationIndex() throws SQLException {
+        connection = DriverManager.getConnection(dbUrl);
+
+        try {
+            ResultSet resultSet = connection.createStatement().executeQuery("SELECT key, latitude, longitude FROM Locations");
+            LocationIndex locationIndex = new LocationIndex();
+            while (resultSet.next())
+                locationIndex.put(resultSet.getString("key"), resultSet.getDouble("latitude"), resultSet.getDouble("longitude"));
+            return locationIndex;
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Store an updated location on the node owning its cell, which is this Server unless it runs in a cluster. If the
+     * key was stored by another node before, it is removed there.
+     *
+     * @param locationObject the updated location
+     * @throws SQLException could not write to the local database
+     * @throws IOException could not write to the local LocationStore or forward the location to the owning node
+     */
+    private void storeLocation(LocationObject locationObject) throws SQLException, IOException {
+        int owner = cluster == null ? nodeId : cluster.ownerOf(locationObject.getLatitude(), locationObject.getLongitude());
+
+        if (owner == nodeId)
+            insertLocalLocation(locationObject);
+        else
+            PeerProtocol.forwardUpdate(cluster.getPeerAddress(owner), locationObject);
+
+        if (cluster == null) return;
+        int previous = cluster.moveKey(locationObject.getKey(), owner);
+        if (previous != -1 && previous != owner)
+            removeMovedLocations(previous, Collections.singletonList(locationObject.getKey()));
+    }
+
+    /**
+     * <p>Hand the locations this node stores in a cell over to the cell's owner, after the cell was assigned to another
+     * node in the ClusterMap. They are stored on the new owner and removed here, so the cell's keys are neither lost
+     * nor left behind as stale copies.</p>
+     *
+     * <p>Updates keep arriving while the cell moves. A key is only handed over if it is claimed from this node in the
+     * ClusterMap first, so keys already updated elsewhere are skipped, and the new owner keeps any key it stored in
+     * the meantime instead of taking this node's older copy. Handed over locations are not recorded as history, they
+     * are not new positions.</p>
+     *
+     * <p>Does nothing if this node still owns the cell, or does not run in a cluster.</p>
+     *
+     * @param cell the reassigned cell, see {@link ClusterMap#cellOf(double, double)}
+     * @throws SQLException could not read or write the local database
+     * @throws IOException could not write to the local LocationStore or reach the new owner
+     */
+    public void handOffCell(long cell) throws SQLException, IOException {
+        if (cluster == null) return;
+        int owner = cluster.ownerOf(cell);
+        if (owner == nodeId) return;
+
+        List<LocationObject> locationObjects = new ArrayList<>();
+        if (store != null) {
+            store.forEach(locationObject -> {
+                if (ClusterMap.cellOf(locationObject.getLatitude(), locationObject.getLongitude()) == cell)
+                    locationObjects.add(locationObject);
+            });
+        } else {
+            (index != null ? index : readLocationIndex()).findInCell(cell, locationObjects);
+        }
+
+        int handed = 0;
+        for (int from = 0; from < locationObjects.size(); from += MAX_BATCH_SIZE)
+            handed += handOffLocations(owner,
+                    locationObjects.subList(from, Math.min(from + MAX_BATCH_SIZE, locationObjects.size())));
+        logger.log(Level.INFO, "Handed " + handed + " locations over to node " + owner);
+    }
+
+    /**
+     * Claim the keys of some locations for their new owner, send them over and remove them here, see
+     * {@link #handOffCell(long)}.
+     *
+     * @param owner id of the new owner
+     * @param locationObjects at most {@link #MAX_BATCH_SIZE} locations
+     * @return number of locations handed over
+     * @throws SQLException could not remove the locations from the local database
+     * @throws IOException could not write to the local LocationStore or reach the new owner
+     */
+    private int handOffLocations(int owner, List<LocationObject> locationObjects) throws SQLException, IOException {
+        List<LocationObject> claimed = new ArrayList<>();
+        for (LocationObject locationObject : locationObjects)
+            if (cluster.claimKey(locationObject.getKey(), nodeId, owner))
+                claimed.add(locationObject);
+        if (claimed.isEmpty()) return 0;
+
+        try {
+            PeerProtocol.handOff(cluster.getPeerAddress(owner), claimed);
+        } catch (IOException e) {
+            // the locations are still here, give the keys back
+            for (LocationObject locationObject : claimed)
+                cluster.claimKey(locationObject.getKey(), owner, nodeId);
+            throw e;
+        }
+
+        // a key may have moved on to this node again while handing over, its new location stays
+        List<String> keys = new ArrayList<>();
+        for (LocationObject locationObject : claimed)
+            if (cluster.ownerOfKey(locationObject.getKey()) != nodeId)
+                keys.add(locationObject.getKey());
+        removeLocalLocations(keys);
+        return keys.size();
+    }
+
+    /**
+     * <p>Find the nearest locations within 200 meters of a given location across the whole cluster. The local database
+     * is always searched, the other nodes are only asked when the search area reaches into cells they own.</p>
+     *
+     * <p>A node that cannot be reached is logged and skipped, the client still gets what the other nodes found.</p>
+     *
+     * @param locationObject the location to compare to
+     * @param locationObjects if a close location is found, put it in here
+     * @throws SQLException if the local database cannot be accessed
+     * @throws IOException if the local LocationStore cannot be searched
+     */
+    private void findClusterNeighbours(LocationObject locationObject,
+                                       ArrayList<LocationObject> locationObjects) throws SQLException, IOException {
+        findLocalNearestLocations(locationObject, locationObjects);
+        findRemoteNeighbours(locationObject, locationObjects);
+    }
+
+    /**
+     * Ask the other nodes owning cells in the search area of a location for their neighbours of it. Does nothing
+     * outside of a cluster.
+     *
+     * @param locationObject the location to compare to
+     * @param locationObjects if a close location is found, put it in here
+     */
+    private void findRemoteNeighbours(LocationObject locationObject, ArrayList<LocationObject> locationObjects) {
+        if (cluster == null) return;
+
+        for (int owner : findRemoteOwners(locationObject)) {
+            try {
+                PeerProtocol.queryNeighbours(cluster.getPeerAddress(owner), locationObject, locationObjects);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not query node " + owner + " for neighbours.", e);
+            }
+        }
+    }
+
+    /**
+     * Find the other nodes owning cells in the search area of a location.
+     *
+     * @param locationObject the location to compare to
+     * @return ids of the other nodes, empty if none
+     */
+    private Set<Integer> findRemoteOwners(LocationObject locationObject) {
+        // the search area is a 0.01 degree square, so its corners cover every cell it touches
+        Set<Integer> remoteOwners = new HashSet<>();
+        for (double dLat : new double[]{-0.005, 0.005}) {
+            for (double dLng : new double[]{-0.005, 0.005}) {
+                int owner = cluster.ownerOf(locationObject.getLatitude() + dLat, locationObject.getLongitude() + dLng);
+                if (owner != nodeId) remoteOwners.add(owner);
+            }
+        }
+        return remoteOwners;
+    }
+
+    /**
+     * <p>Serve requests from the other nodes of the cluster, one request per connection. Runs until the peer listener
+     * is closed.</p>
+     *
+     * @see PeerProtocol
+     */
+    private void runPeerListener() {
+        while (!peerListener.isClosed()) {
+            try (Socket socket = peerListener.accept()) {
+                // a stalled peer must not hold up the others, requests are served one at a time
+                socket.setSoTimeout(PeerProtocol.IDLE_TIMEOUT_MILLIS);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+                byte op = in.readByte();
+
+                try {
+                    if (op == PeerProtocol.OP_UPDATE) {
+                        insertLocalLocation(PeerProtocol.readLocation(in));
+                        out.writeByte(PeerProtocol.STATUS_OK);
+                    } else if (op == PeerProtocol.OP_UPDATE_BATCH) {
+                        int count = in.readInt();
+                        if (count < 0 || count > MAX_BATCH_SIZE) throw new IOException("Peer batch too large: " + count);
+                        List<LocationObject> locationObjects = new ArrayList<>();
+                        for (int i = 0; i < count; ++i)
+                            locationObjects.add(PeerProtocol.readLocation(in));
+                        insertLocalLocations(locationObjects);
+                        out.writeByte(PeerProtocol.STATUS_OK);
+                    } else if (op == PeerProtocol.OP_REMOVE) {
+                        int count = in.readInt();
+                        if (count < 0 || count > MAX_BATCH_SIZE) throw new IOException("Peer batch too large: " + count);
+                        List<String> keys = new ArrayList<>();
+                        for (int i = 0; i < count; ++i)
+                            keys.add(in.readUTF());
+                        removeLocalLocations(keys);
+                        out.writeByte(PeerProtocol.STATUS_OK);
+                    } else if (op == PeerProtocol.OP_NEIGHBOURS) {
+                        LocationObject locationObject = PeerProtocol.readLocation(in);
+                        ArrayList<LocationObject> locationObjects = new ArrayList<>();
+                        findLocalNearestLocations(locationObject, locationObjects);
+                        out.writeByte(PeerProtocol.STATUS_OK);
+                        out.writeInt(locationObjects.size());
+                        for (LocationObject found : locationObjects)
+                            PeerProtocol.writeLocation(out, found);
+                    } else if (op == PeerProtocol.OP_HAND_OFF) {
+                        int count = in.readInt();
+                        if (count < 0 || count > MAX_BATCH_SIZE) throw new IOException("Peer batch too large: " + count);
+                        List<LocationObject> locationObjects = new ArrayList<>();
+                        for (int i = 0; i < count; ++i)
+                            locationObjects.add(PeerProtocol.readLocation(in));
+                        if (store != null)
+                            store.insertAllAbsent(locationObjects);
+                        else
+                            insertAbsentLocations(locationObjects);
+                        out.writeByte(PeerProtocol.STATUS_OK);
+                    } else if (op == PeerProtocol.OP_NEIGHBOURS_BATCH) {
+                        int count = in.readInt();
+                        if (count < 0 || count > MAX_BATCH_SIZE) throw new IOException("Peer batch too large: " + count);
+                        List<LocationObject> locationObjects = new ArrayList<>();
+                        for (int i = 0; i < count; ++i)
+                            locationObjects.add(PeerProtocol.readLocation(in));
+                        List<ArrayList<LocationObject>> found = findLocalBatchNeighbours(locationObjects);
+                        out.writeByte(PeerProtocol.STATUS_OK);
+                        for (ArrayList<LocationObject> nearest : found) {
+                            out.writeInt(nearest.size());
+                            for (LocationObject locationObject : nearest)
+                                PeerProtocol.writeLocation(out, locationObject);
+                        }
+                    } else {
+                        logger.log(Level.WARNING, "Peer sent unknown request: " + op);
+                        out.writeByte(PeerProtocol.STATUS_ERROR);
+                    }
+                } catch (SQLException e) {
+                    logger.log(Level.SEVERE, "Could not serve peer request from database.");
+                    out.writeByte(PeerProtocol.STATUS_ERROR);
+                }
+
+                out.flush();
+            } catch (IOException e) {
+                if (!peerListener.isClosed())
+                    logger.log(Level.WARNING, "Failed peer request.", e);
+            }
+        }
+    }
+
+    /**
+     * Store a batch of locations from a gateway client and send back one neighbour per device. If anything fails,
+     * the client gets the out-of-bounds location instead of a batch.
+     *
+     * @param batch the batch received after the handshake
+     * @param key the key given to the gateway in the handshake
+     * @param ip address of the gateway, for the log
+     * @param out stream to the gateway
+     * @throws IOException could not write to the gateway
+     */
+    private void serveBatch(LocationBatch batch, String key, String ip, ObjectOutputStream out) throws IOException {
+        List<LocationObject> locationObjects = batch.getLocationObjects();
+        if (locationObjects == null || locationObjects.isEmpty() || locationObjects.size() > MAX_BATCH_SIZE
+                || locationObjects.contains(null)) {
+            logger.log(Level.WARNING, "Client " + ip + " sent an empty, oversized or malformed batch.");
+            out.writeObject(OUT_OF_BOUNDS_LOCATION);
+            out.flush();
+            return;
+        }
+
+        for (int i = 0; i < locationObjects.size(); ++i)
+            if (locationObjects.get(i).getKey() == null) locationObjects.get(i).setKey(key + " | " + i);
+
+        ArrayList<LocationObject> neighbours;
+        try {
+            storeLocations(locationObjects);
+            neighbours = findBatchNeighbours(locationObjects);
+        } catch (SQLException | IOException e) {
+            logger.log(Level.SEVERE, "Could not store or search batch of locations.", e);
+            out.writeObject(OUT_OF_BOUNDS_LOCATION);
+            out.flush();
+            return;
+        }
+
+        out.writeObject(new LocationBatch(neighbours));
+        out.flush();
+        logger.log(Level.INFO, "Stored batch of " + locationObjects.size() + " locations from client: " + ip);
+    }
+
     /**
      * <p>Start the server in another thread.</p>
      *
@@ -243,103 +1301,163 @@ public class Server implements Runnable {
      * happen first.</p>
      */
     public void run() {
+        if (peerListener != null) {
+            Thread peers = new Thread(this::runPeerListener, "Server-node-" + nodeId + "-peers");
+            peers.setDaemon(true);
+            peers.start();
+        }
+
         try {
             while (true) {
                 // cannot check at the end if an exception is thrown and execution continues
                 if (Thread.interrupted()) {
                     logger.log(Level.WARNING, "Server interrupted in loop.");
                     listener.close(); // close the socket when stopping
-                    if (!connection.isClosed()) connection.close();
+                    if (peerListener != null) peerListener.close();
+                    if (datagramSocket != null) datagramSocket.close();
+                    if (store != null) store.close();
+                    if (history != null) history.close();
+                    if (snapshotter != null) {
+                        snapshotter.shutdown();
+                        try {
+                            snapshotter.awaitTermination(1, TimeUnit.MINUTES);
+                        } catch (InterruptedException e) {
+                            logger.log(Level.WARNING, "Interrupted waiting for a running snapshot.");
+                        }
+                        writeSnapshot();
+                    }
+                    if (connection != null && !connection.isClosed()) connection.close();
                     return;
                 }
 
                 Socket socket = listener.accept();
-
-                // grab client info
-                InetAddress clientAddr = socket.getInetAddress();
-                StringBuilder stringBuilder = new StringBuilder();
-                for (byte b : clientAddr.getAddress()) {
-                    if (stringBuilder.length() > 0) stringBuilder.append(".");
-                    stringBuilder.append(Byte.toString(b));
-                }
-                String ip = stringBuilder.toString();
-                logger.log(Level.INFO, "New connection opened with client at: " + ip);
-
-                String key = Calendar.getInstance().getTime().toString() + " | " + ip;
-
-                ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-                ObjectInputStream in = null;
-                LocationObject locationObject;
-
-                // perform a handshake with the server
                 try {
-                    out.writeObject(new LocationObject(key, OUT_OF_BOUNDS_LATITUDE, OUT_OF_BOUNDS_LONGITUDE));
-                    out.flush();
-                    in = new ObjectInputStream(socket.getInputStream());
-                    locationObject = (LocationObject) in.readObject();
-                    int count = 1000; // client gets 1000 chances
-                    while (!locationObject.getKey().equals(key) && count > 0) {
-                        out.writeObject(new LocationObject(key, OUT_OF_BOUNDS_LATITUDE, OUT_OF_BOUNDS_LONGITUDE));
-                        out.flush();
-                        locationObject = (LocationObject) in.readObject();
-                        --count;
-                    }
-                    if (count == 0) throw new IOException("Could not perform a handshake with the server.");
-                } catch (ClassNotFoundException e) {
-                    logger.log(Level.WARNING, "Client " + ip + " sent wrong object type.");
-                    out.writeObject(OUT_OF_BOUNDS_LOCATION);
-                    out.flush();
+                    serveClient(socket);
+                } catch (RuntimeException e) {
+                    // a malformed request must not stop the server for everyone else
+                    logger.log(Level.SEVERE, "Unexpected error serving client, closing connection.", e);
                     socket.close();
-                    continue;
-                } catch (IOException e) {
-                    logger.log(Level.WARNING, "Failed handshake with " + ip);
-                    out.writeObject(OUT_OF_BOUNDS_LOCATION);
-                    out.flush();
-                    socket.close();
-                    continue;
-                }
-
-                // read new location from client
-                try {
-                    locationObject = (LocationObject) in.readObject();
-                } catch (ClassNotFoundException e) {
-                    logger.log(Level.WARNING, "Client sent wrong object type.");
-                    out.writeObject(OUT_OF_BOUNDS_LOCATION);
-                    out.flush();
-                    socket.close();
-                    continue;
                 }
+            }
+        } catch (IOException e) {
+            e.getMessage();
+        } catch (SQLException e) {
+            logger.log(Level.SEVERE, "Could not close connection to SQLite DB.");
+        }
+    }
 
-                if (locationObject.getKey() == null) locationObject.setKey(key);
+    /**
+     * Serve one client connection: handshake, then one location or batch of locations, then the answer.
+     *
+     * @param socket the accepted client connection, closed when done
+     * @throws IOException could not talk to the client
+     * @throws SQLException could not search the local database
+     */
+    private void serveClient(Socket socket) throws IOException, SQLException {
+        // grab client info
+        InetAddress clientAddr = socket.getInetAddress();
+        StringBuilder stringBuilder = new StringBuilder();
+        for (byte b : clientAddr.getAddress()) {
+            if (stringBuilder.length() > 0) stringBuilder.append(".");
+            stringBuilder.append(Byte.toString(b));
+        }
+        String ip = stringBuilder.toString();
+        logger.log(Level.INFO, "New connection opened with client at: " + ip);
 
-                // insert new location into the database
-                try {
-                    findAndInsertLocation(locationObject);
-                } catch (SQLException e) {
-                    logger.log(Level.SEVERE, "Could not insert new location into database.");
-                    out.writeObject(OUT_OF_BOUNDS_LOCATION);
-                    out.flush();
-                    socket.close();
-                    continue;
-                }
+        String key = Calendar.getInstance().getTime().toString() + " | " + ip;
 
-                // find the nearest set of locations and send them to the client
-                // TODO: send first location found for now, come back after designing the way to send all
-                ArrayList<LocationObject> locationObjects = new ArrayList<>();
-                findNearestLocations(locationObject, locationObjects);
-                if (locationObjects.isEmpty())
-                    out.writeObject(OUT_OF_BOUNDS_LOCATION);
-                else
-                    out.writeObject(locationObjects.get(0));
+        ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+        ObjectInputStream in = null;
+        LocationObject locationObject;
 
+        // perform a handshake with the server
+        try {
+            out.writeObject(new LocationObject(key, OUT_OF_BOUNDS_LATITUDE, OUT_OF_BOUNDS_LONGITUDE));
+            out.flush();
+            in = new ObjectInputStream(socket.getInputStream());
+            locationObject = (LocationObject) in.readObject();
+            int count = 1000; // client gets 1000 chances
+            while (!locationObject.getKey().equals(key) && count > 0) {
+                out.writeObject(new LocationObject(key, OUT_OF_BOUNDS_LATITUDE, OUT_OF_BOUNDS_LONGITUDE));
                 out.flush();
-                socket.close();
-                logger.log(Level.INFO, "Closing connection to client: " + ip);
+                locationObject = (LocationObject) in.readObject();
+                --count;
             }
+            if (count == 0) throw new IOException("Could not perform a handshake with the server.");
+        } catch (ClassNotFoundException e) {
+            logger.log(Level.WARNING, "Client " + ip + " sent wrong object type.");
+            out.writeObject(OUT_OF_BOUNDS_LOCATION);
+            out.flush();
+            socket.close();
+            return;
         } catch (IOException e) {
-            e.getMessage();
+            logger.log(Level.WARNING, "Failed handshake with " + ip);
+            out.writeObject(OUT_OF_BOUNDS_LOCATION);
+            out.flush();
+            socket.close();
+            return;
+        }
+
+        // read new location, or a batch of them, from client
+        Object received;
+        try {
+            received = in.readObject();
+        } catch (ClassNotFoundException e) {
+            logger.log(Level.WARNING, "Client sent wrong object type.");
+            out.writeObject(OUT_OF_BOUNDS_LOCATION);
+            out.flush();
+            socket.close();
+            return;
+        }
+
+        if (received instanceof LocationBatch) {
+            serveBatch((LocationBatch) received, key, ip, out);
+            socket.close();
+            return;
+        } else if (!(received instanceof LocationObject)) {
+            logger.log(Level.WARNING, "Client sent wrong object type.");
+            out.writeObject(OUT_OF_BOUNDS_LOCATION);
+            out.flush();
+            socket.close();
+            return;
+        }
+        locationObject = (LocationObject) received;
+
+        if (locationObject.getKey() == null) locationObject.setKey(key);
+
+        // insert new location into the database, or hand it to the node owning its cell
+        try {
+            storeLocation(locationObject);
         } catch (SQLException e) {
-            logger.log(Level.SEVERE, "Could not close connection to SQLite DB.");
+            logger.log(Level.SEVERE, "Could not insert new location into database.");
+            out.writeObject(OUT_OF_BOUNDS_LOCATION);
+            out.flush();
+            socket.close();
+            return;
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not store new location or forward it to owning node.", e);
+            out.writeObject(OUT_OF_BOUNDS_LOCATION);
+            out.flush();
+            socket.close();
+            return;
         }
+
+        // find the nearest set of locations and send them to the client
+        // TODO: send first location found for now, come back after designing the way to send all
+        ArrayList<LocationObject> locationObjects = new ArrayList<>();
+        try {
+            findClusterNeighbours(locationObject, locationObjects);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not search the persistence engine for neighbours.", e);
+            locationObjects.clear();
+        }
+        if (locationObjects.isEmpty())
+            out.writeObject(OUT_OF_BOUNDS_LOCATION);
+        else
+            out.writeObject(locationObjects.get(0));
+
+        out.flush();
+        socket.close();
+        logger.log(Level.INFO, "Closing connection to client: " + ip);
     }
 }
@@ -0,0 +1,24 @@
+package net.pool2go;
+
+/**
+ * A LocationObject with the time it was recorded at, as returned by {@link LocationHistory}.
+ */
+public class TimedLocationObject extends LocationObject {
+
+    private long time;
+
+    /**
+     * @param key the unique identifier
+     * @param lat latitude of the location
+     * @param lng longitude of the location
+     * @param time when the location was recorded, in milliseconds since the epoch
+     */
+    public TimedLocationObject(String key, double lat, double lng, long time) {
+        super(key, lat, lng);
+        this.time = time;
+    }
+
+    public long getTime() {
+        return time;
+    }
+}
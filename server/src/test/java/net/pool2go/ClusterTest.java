@@ -0,0 +1,312 @@
+package net.pool2go;
+
+import org.junit.jupiter.api.*;
+
+import java.io.*;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Two nodes on loopback in one JVM, sharing a ClusterMap.
+ */
+class ClusterTest {
+
+    private static String currentWorkingDirectory;
+    private static String[] databaseFileNames = {"/pool2go_node0_test.sqlite", "/pool2go_node1_test.sqlite"};
+    private static final int[] TEST_PORTS = {8083, 8084};
+    private static final int[] PEER_PORTS = {8085, 8086};
+    private static final int[] DATAGRAM_PORTS = {8087, 8088};
+    private static final byte[] SECRET = "pool2go test secret".getBytes(StandardCharsets.UTF_8);
+    private static ClusterMap cluster;
+    private static Server[] nodes = new Server[2];
+    private static Thread[] servers = new Thread[2];
+
+    @BeforeAll
+    static void buildDepends() {
+        try {
+            currentWorkingDirectory = new File(".").getCanonicalPath();
+        } catch (IOException e) {
+            System.out.println("Do not have read/write permissions in " + currentWorkingDirectory);
+        }
+
+        cluster = new ClusterMap();
+        for (int port : PEER_PORTS)
+            cluster.addNode("localhost", port);
+
+        // start the nodes, sharing replay protection for datagrams
+        DatagramReplayGuard guard = new DatagramReplayGuard();
+        for (int i = 0; i < servers.length; ++i) {
+            try {
+                nodes[i] = new Server(TEST_PORTS[i], currentWorkingDirectory + databaseFileNames[i], cluster, i);
+                nodes[i].enableDatagrams(DATAGRAM_PORTS[i], SECRET, guard);
+                servers[i] = new Thread(nodes[i]);
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+            }
+            servers[i].start();
+        }
+    }
+
+    @BeforeEach
+    void setUp() {
+        // clear the databases before running each test
+        for (String databaseFileName : databaseFileNames) {
+            try {
+                Connection connection = DriverManager.getConnection("jdbc:sqlite:" + currentWorkingDirectory + databaseFileName);
+                connection.createStatement().execute("DROP TABLE IF EXISTS Locations");
+                connection.createStatement().execute("CREATE TABLE IF NOT EXISTS Locations ( key text PRIMARY KEY, latitude real, longitude real );");
+                connection.close();
+            } catch (SQLException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Handshake with a node, send a location and return the node's answer. A location without a key gets the key
+     * handed out by the node.
+     */
+    private LocationObject sendLocation(int port, LocationObject clientLocationObject) throws IOException, ClassNotFoundException {
+        try (Socket client = new Socket("localhost", port)) {
+            ObjectInputStream in = new ObjectInputStream(client.getInputStream());
+            LocationObject locationObject = (LocationObject) in.readObject();
+            ObjectOutputStream out = new ObjectOutputStream(client.getOutputStream());
+            out.writeObject(locationObject);
+            out.flush();
+
+            if (clientLocationObject.getKey() == null) clientLocationObject.setKey(locationObject.getKey());
+            out.writeObject(clientLocationObject);
+            out.flush();
+
+            return (LocationObject) in.readObject();
+        }
+    }
+
+    private int countLocations(String databaseFileName) throws SQLException {
+        Connection connection = DriverManager.getConnection("jdbc:sqlite:" + currentWorkingDirectory + databaseFileName);
+        ResultSet resultSet = connection.createStatement().executeQuery("SELECT COUNT(*) FROM Locations");
+        int count = resultSet.getInt(1);
+        connection.close();
+        return count;
+    }
+
+    @Test
+    void updateForRemoteCellIsForwarded() throws Exception {
+        cluster.assign(ClusterMap.cellOf(10.001, 10.001), 1);
+
+        LocationObject locationObject = sendLocation(TEST_PORTS[0], new LocationObject(10.001, 10.001));
+
+        assertTrue(locationObject.getLatitude() == 360 && locationObject.getLongitude() == 360);
+        assertEquals(0, countLocations(databaseFileNames[0]));
+        assertEquals(1, countLocations(databaseFileNames[1]));
+    }
+
+    @Test
+    void neighboursAcrossCellBoundaryAreFound() throws Exception {
+        // 20.009 and 20.011 sit on either side of a cell boundary, owned by different nodes
+        cluster.assign(ClusterMap.cellOf(20.009, 20.005), 0);
+        cluster.assign(ClusterMap.cellOf(20.011, 20.005), 1);
+
+        sendLocation(TEST_PORTS[1], new LocationObject(20.011, 20.005));
+
+        // wait for the server to generate a new timestamp-based key
+        Thread.sleep(2000);
+
+        LocationObject locationObject = sendLocation(TEST_PORTS[0], new LocationObject(20.009, 20.005));
+
+        assertEquals(20.011, locationObject.getLatitude());
+        assertEquals(20.005, locationObject.getLongitude());
+        assertEquals(1, countLocations(databaseFileNames[0]));
+        assertEquals(1, countLocations(databaseFileNames[1]));
+    }
+
+    /**
+     * Handshake with a node as a gateway, send a batch and return the node's answer.
+     */
+    private LocationBatch sendBatch(int port, LocationBatch batch) throws IOException, ClassNotFoundException {
+        try (Socket client = new Socket("localhost", port)) {
+            ObjectInputStream in = new ObjectInputStream(client.getInputStream());
+            LocationObject locationObject = (LocationObject) in.readObject();
+            ObjectOutputStream out = new ObjectOutputStream(client.getOutputStream());
+            out.writeObject(locationObject);
+            out.flush();
+
+            out.writeObject(batch);
+            out.flush();
+
+            return (LocationBatch) in.readObject();
+        }
+    }
+
+    @Test
+    void gatewayBatchFindsNeighboursOnOtherNode() throws Exception {
+        cluster.assign(ClusterMap.cellOf(20.009, 21.005), 0);
+        cluster.assign(ClusterMap.cellOf(20.011, 21.005), 1);
+        cluster.assign(ClusterMap.cellOf(22.009, 21.005), 0);
+        cluster.assign(ClusterMap.cellOf(22.011, 21.005), 1);
+        sendLocation(TEST_PORTS[1], new LocationObject("first neighbour", 20.011, 21.005));
+        sendLocation(TEST_PORTS[1], new LocationObject("second neighbour", 22.011, 21.005));
+
+        LocationBatch batch = new LocationBatch();
+        batch.add(new LocationObject("device one", 20.009, 21.005));
+        batch.add(new LocationObject("device two", 22.009, 21.005));
+        batch.add(new LocationObject("device three", 60, 60));
+
+        LocationBatch neighbours = sendBatch(TEST_PORTS[0], batch);
+
+        // both neighbours are stored by the other node
+        assertEquals(3, neighbours.size());
+        assertEquals(20.011, neighbours.getLocationObjects().get(0).getLatitude());
+        assertEquals(22.011, neighbours.getLocationObjects().get(1).getLatitude());
+        assertEquals(360, neighbours.getLocationObjects().get(2).getLatitude());
+    }
+
+    @Test
+    void lastLocationOfDeviceInBatchWins() throws Exception {
+        cluster.assign(ClusterMap.cellOf(25.001, 25.001), 1);
+        cluster.assign(ClusterMap.cellOf(25.021, 25.001), 0);
+
+        // the device moves from a cell of node 1 into a cell of node 0 within one batch
+        LocationBatch batch = new LocationBatch();
+        batch.add(new LocationObject("moving device", 25.001, 25.001));
+        batch.add(new LocationObject("moving device", 25.021, 25.001));
+        sendBatch(TEST_PORTS[0], batch);
+
+        assertEquals(1, countLocations(databaseFileNames[0]));
+        assertEquals(0, countLocations(databaseFileNames[1]));
+    }
+
+    @Test
+    void movedKeyIsRemovedFromPreviousNode() throws Exception {
+        cluster.assign(ClusterMap.cellOf(40.001, 40.001), 0);
+        cluster.assign(ClusterMap.cellOf(40.021, 40.001), 1);
+
+        LocationObject clientLocationObject = new LocationObject(40.001, 40.001);
+        sendLocation(TEST_PORTS[0], clientLocationObject);
+        assertEquals(1, countLocations(databaseFileNames[0]));
+
+        // the same key moves into the cell owned by the other node
+        sendLocation(TEST_PORTS[0], new LocationObject(clientLocationObject.getKey(), 40.021, 40.001));
+
+        assertEquals(0, countLocations(databaseFileNames[0]));
+        assertEquals(1, countLocations(databaseFileNames[1]));
+    }
+
+    @Test
+    void reassignedCellIsHandedOff() throws Exception {
+        long cell = ClusterMap.cellOf(50.001, 50.001);
+        cluster.assign(cell, 0);
+        sendLocation(TEST_PORTS[0], new LocationObject(50.001, 50.001));
+        sendLocation(TEST_PORTS[0], new LocationObject("other key", 50.002, 50.002));
+        assertEquals(2, countLocations(databaseFileNames[0]));
+
+        cluster.assign(cell, 1);
+        nodes[0].handOffCell(cell);
+
+        assertEquals(0, countLocations(databaseFileNames[0]));
+        assertEquals(2, countLocations(databaseFileNames[1]));
+
+        // a stale update sent to the old owner now ends up on the new one
+        sendLocation(TEST_PORTS[0], new LocationObject("other key", 50.003, 50.003));
+        assertEquals(0, countLocations(databaseFileNames[0]));
+        assertEquals(2, countLocations(databaseFileNames[1]));
+    }
+
+    @Test
+    void handOffKeepsNewerLocationOnNewOwner() throws Exception {
+        long cell = ClusterMap.cellOf(55.001, 55.001);
+        cluster.assign(cell, 0);
+        sendLocation(TEST_PORTS[0], new LocationObject("handed key", 55.001, 55.001));
+
+        // an update that reached the new owner before the hand-off did
+        Connection connection = DriverManager.getConnection("jdbc:sqlite:" + currentWorkingDirectory + databaseFileNames[1]);
+        connection.createStatement().execute("INSERT INTO Locations(key, latitude, longitude) VALUES('handed key', 55.002, 55.002)");
+        connection.close();
+
+        cluster.assign(cell, 1);
+        nodes[0].handOffCell(cell);
+
+        assertEquals(0, countLocations(databaseFileNames[0]));
+        connection = DriverManager.getConnection("jdbc:sqlite:" + currentWorkingDirectory + databaseFileNames[1]);
+        ResultSet resultSet = connection.createStatement().executeQuery("SELECT latitude FROM Locations WHERE key = 'handed key'");
+        double latitude = resultSet.getDouble(1);
+        connection.close();
+        assertEquals(55.002, latitude);
+    }
+
+    /**
+     * Send a datagram to a node and return the decoded answer, or null if none came.
+     */
+    private LocationDatagram sendDatagram(int port, byte[] data) throws IOException {
+        try (DatagramSocket client = new DatagramSocket()) {
+            client.setSoTimeout(1000);
+            client.send(new DatagramPacket(data, data.length, InetAddress.getLoopbackAddress(), port));
+
+            byte[] buffer = new byte[LocationDatagram.MAX_SIZE];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                client.receive(packet);
+            } catch (SocketTimeoutException e) {
+                return null;
+            }
+            return LocationDatagram.decode(packet.getData(), packet.getLength(), SECRET);
+        }
+    }
+
+    @Test
+    void replayedDatagramIsDroppedByEveryNode() throws Exception {
+        cluster.assign(ClusterMap.cellOf(30.001, 30.001), 0);
+        sendLocation(TEST_PORTS[0], new LocationObject(30.003, 30.003));
+
+        long counter = System.currentTimeMillis();
+        byte[] data = new LocationDatagram(LocationDatagram.TYPE_UPDATE, LocationDatagram.FLAG_REPLY, counter,
+                new LocationObject("datagram client", 30.001, 30.001)).encode(SECRET);
+
+        LocationDatagram reply = sendDatagram(DATAGRAM_PORTS[0], data);
+        assertEquals(LocationDatagram.TYPE_NEIGHBOUR, reply.getType());
+        assertEquals(counter, reply.getCounter());
+        assertEquals(30.003, reply.getLocationObject().getLatitude());
+        assertEquals(2, countLocations(databaseFileNames[0]));
+
+        // the very same bytes again, to the same node and to the other one
+        assertNull(sendDatagram(DATAGRAM_PORTS[0], data));
+        assertNull(sendDatagram(DATAGRAM_PORTS[1], data));
+    }
+
+    @Test
+    void datagramCannotOverwriteSocketClient() throws Exception {
+        cluster.assign(ClusterMap.cellOf(35.001, 35.001), 0);
+        cluster.assign(ClusterMap.cellOf(36.001, 36.001), 0);
+        LocationObject socketClient = new LocationObject(35.001, 35.001);
+        sendLocation(TEST_PORTS[0], socketClient);
+
+        // any client holding the shared secret can sign a datagram under the socket client's key
+        byte[] data = new LocationDatagram(LocationDatagram.TYPE_UPDATE, (byte) 0, System.currentTimeMillis(),
+                new LocationObject(socketClient.getKey(), 36.001, 36.001)).encode(SECRET);
+        try (DatagramSocket client = new DatagramSocket()) {
+            client.send(new DatagramPacket(data, data.length, InetAddress.getLoopbackAddress(), DATAGRAM_PORTS[0]));
+        }
+        Thread.sleep(500);
+
+        assertEquals(2, countLocations(databaseFileNames[0]));
+        Connection connection = DriverManager.getConnection("jdbc:sqlite:" + currentWorkingDirectory + databaseFileNames[0]);
+        PreparedStatement statement = connection.prepareStatement("SELECT latitude FROM Locations WHERE key = ?");
+        statement.setString(1, socketClient.getKey());
+        double latitude = statement.executeQuery().getDouble(1);
+        connection.close();
+        assertEquals(35.001, latitude);
+    }
+
+    @AfterAll
+    static void cleanUp() {
+        for (Thread server : servers)
+            server.interrupt();
+    }
+}
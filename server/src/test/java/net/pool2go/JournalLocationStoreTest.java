@@ -0,0 +1,126 @@
+package net.pool2go;
+
+import org.junit.jupiter.api.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JournalLocationStoreTest {
+
+    private static final int RECORDS_PER_SEGMENT = 16;
+    private File directory;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        // start every test from an empty journal
+        directory = new File(new File(".").getCanonicalPath(), "pool2go_test.journal");
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+    }
+
+    @Test
+    void latestLocationSurvivesRestart() throws Exception {
+        JournalLocationStore store = new JournalLocationStore(directory, RECORDS_PER_SEGMENT);
+        store.insert(new LocationObject("one", 5.001, 5.001));
+        store.insert(new LocationObject("two", 50, 50));
+        store.insert(new LocationObject("two", 5.003, 5.003));
+        store.close();
+
+        store = new JournalLocationStore(directory, RECORDS_PER_SEGMENT);
+        ArrayList<LocationObject> locationObjects = new ArrayList<>();
+        store.findNearest(new LocationObject("one", 5.001, 5.001), locationObjects);
+        store.close();
+
+        assertEquals(2, store.size());
+        assertEquals(1, locationObjects.size());
+        assertEquals(5.003, locationObjects.get(0).getLatitude());
+        assertEquals(5.003, locationObjects.get(0).getLongitude());
+    }
+
+    @Test
+    void compactionKeepsOnlyLatestRecords() throws Exception {
+        JournalLocationStore store = new JournalLocationStore(directory, RECORDS_PER_SEGMENT);
+        for (int i = 0; i < RECORDS_PER_SEGMENT * 20; ++i)
+            store.insert(new LocationObject("key" + (i % 4), i, i));
+        store.close(); // waits for a running compaction
+
+        // 20 segments were filled, compaction must have folded some of them together
+        assertTrue(directory.listFiles().length < 20);
+
+        store = new JournalLocationStore(directory, RECORDS_PER_SEGMENT);
+        ArrayList<LocationObject> locationObjects = new ArrayList<>();
+        int last = RECORDS_PER_SEGMENT * 20 - 1;
+        store.findNearest(new LocationObject("other", last, last), locationObjects);
+        store.close();
+
+        assertEquals(4, store.size());
+        assertEquals(1, locationObjects.size());
+        assertEquals(last, locationObjects.get(0).getLatitude());
+    }
+
+    @Test
+    void emptyKeyIsRejected() throws Exception {
+        JournalLocationStore store = new JournalLocationStore(directory, RECORDS_PER_SEGMENT);
+        assertThrows(IOException.class, () -> store.insert(new LocationObject("", 5.001, 5.001)));
+        store.insert(new LocationObject("one", 5.001, 5.001));
+        store.close();
+
+        // the record after the rejected one must still be found
+        JournalLocationStore reopened = new JournalLocationStore(directory, RECORDS_PER_SEGMENT);
+        reopened.close();
+        assertEquals(1, reopened.size());
+    }
+
+    @Test
+    void removedKeyStaysRemovedAfterRestart() throws Exception {
+        JournalLocationStore store = new JournalLocationStore(directory, RECORDS_PER_SEGMENT);
+        store.insert(new LocationObject("one", 5.001, 5.001));
+        store.insert(new LocationObject("two", 5.003, 5.003));
+        store.remove("two");
+        store.remove("missing");
+        assertEquals(1, store.size());
+        store.close();
+
+        store = new JournalLocationStore(directory, RECORDS_PER_SEGMENT);
+        ArrayList<LocationObject> locationObjects = new ArrayList<>();
+        store.findNearest(new LocationObject("one", 5.001, 5.001), locationObjects);
+        store.close();
+
+        assertEquals(1, store.size());
+        assertEquals(0, locationObjects.size());
+    }
+
+    @Test
+    void restartsDoNotPileUpSegments() throws Exception {
+        // every start seals the previous, barely written active segment and maps a new one
+        for (int i = 0; i < 8; ++i) {
+            JournalLocationStore store = new JournalLocationStore(directory, RECORDS_PER_SEGMENT);
+            store.insert(new LocationObject("key" + i, i, i));
+            store.close(); // waits for a running compaction
+        }
+
+        assertTrue(directory.listFiles().length < 8);
+
+        JournalLocationStore store = new JournalLocationStore(directory, RECORDS_PER_SEGMENT);
+        store.close();
+        assertEquals(8, store.size());
+    }
+
+    @Test
+    void liveSegmentsAreNotCompacted() throws Exception {
+        JournalLocationStore store = new JournalLocationStore(directory, RECORDS_PER_SEGMENT);
+        for (int i = 0; i < RECORDS_PER_SEGMENT * 8; ++i)
+            store.insert(new LocationObject("key" + i, i, i));
+        Thread.sleep(500);
+        store.close();
+
+        // every record is still live, so the first segment must not have been copied and deleted
+        assertTrue(new File(directory, "journal-0000000000000000.seg").exists());
+        assertEquals(8, directory.listFiles().length);
+    }
+}
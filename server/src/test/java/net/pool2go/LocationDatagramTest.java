@@ -0,0 +1,67 @@
+package net.pool2go;
+
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LocationDatagramTest {
+
+    private static final byte[] SECRET = "pool2go test secret".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    void datagramRoundTrip() throws IOException {
+        LocationDatagram datagram = new LocationDatagram(LocationDatagram.TYPE_UPDATE, LocationDatagram.FLAG_REPLY,
+                1234567890L, new LocationObject("client", 5.001, 5.003));
+        byte[] data = datagram.encode(SECRET);
+
+        LocationDatagram decoded = LocationDatagram.decode(data, data.length, SECRET);
+        assertEquals(LocationDatagram.TYPE_UPDATE, decoded.getType());
+        assertTrue(decoded.isReplyWanted());
+        assertEquals(1234567890L, decoded.getCounter());
+        assertEquals("client", decoded.getLocationObject().getKey());
+        assertEquals(5.001, decoded.getLocationObject().getLatitude());
+        assertEquals(5.003, decoded.getLocationObject().getLongitude());
+    }
+
+    @Test
+    void tamperedDatagramIsRejected() {
+        byte[] data = new LocationDatagram(LocationDatagram.TYPE_UPDATE, (byte) 0, 1L,
+                new LocationObject("client", 5.001, 5.003)).encode(SECRET);
+        data[12] ^= 1;
+
+        assertThrows(IOException.class, () -> LocationDatagram.decode(data, data.length, SECRET));
+    }
+
+    @Test
+    void datagramWithOtherSecretIsRejected() {
+        byte[] data = new LocationDatagram(LocationDatagram.TYPE_UPDATE, (byte) 0, 1L,
+                new LocationObject("client", 5.001, 5.003)).encode("other secret".getBytes(StandardCharsets.UTF_8));
+
+        assertThrows(IOException.class, () -> LocationDatagram.decode(data, data.length, SECRET));
+    }
+
+    @Test
+    void replayGuardAcceptsEachCounterOnce() {
+        DatagramReplayGuard guard = new DatagramReplayGuard();
+        long now = System.currentTimeMillis();
+
+        assertTrue(guard.accept("client", now));
+        assertFalse(guard.accept("client", now));
+        assertFalse(guard.accept("client", now - 1));
+        assertTrue(guard.accept("client", now + 1));
+        assertTrue(guard.accept("other client", now));
+    }
+
+    @Test
+    void replayGuardRejectsStaleCounters() {
+        DatagramReplayGuard guard = new DatagramReplayGuard();
+        long now = System.currentTimeMillis();
+
+        // outside the window, and from before the guard existed, as after a restart
+        assertFalse(guard.accept("client", now + 2 * DatagramReplayGuard.WINDOW_MILLIS));
+        assertFalse(guard.accept("client", now - 1000));
+    }
+}
@@ -0,0 +1,56 @@
+package net.pool2go;
+
+import org.junit.jupiter.api.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LocationHistoryTest {
+
+    private static final long HOUR = LocationHistory.PARTITION_MILLIS;
+    private static final long MINUTE = HOUR / 60;
+    private static final long START = 1600000000000L / HOUR * HOUR; // start of an hour
+
+    private String databaseUrl;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        // start from an empty history database
+        databaseUrl = new File(".").getCanonicalPath() + "/pool2go_history_test.sqlite";
+        for (String suffix : new String[]{"", "-wal", "-shm"})
+            new File(databaseUrl + suffix).delete();
+    }
+
+    @Test
+    void rangeScanAndRetention() throws IOException, SQLException {
+        LocationHistory history = new LocationHistory(databaseUrl, 0);
+        history.record(new LocationObject("one", 5.001, 5.001), START + 10 * MINUTE);
+        history.record(new LocationObject("two", 9.001, 9.001), START + 20 * MINUTE);
+        history.record(new LocationObject("one", 5.002, 5.002), START + 70 * MINUTE);
+        history.record(new LocationObject("one", 5.003, 5.003), START + 130 * MINUTE);
+        history.close(); // writes everything still queued
+
+        List<TimedLocationObject> trajectory = history.findHistory("one", START, START + 3 * HOUR);
+        assertEquals(3, trajectory.size());
+        assertEquals(START + 10 * MINUTE, trajectory.get(0).getTime());
+        assertEquals(5.003, trajectory.get(2).getLatitude());
+
+        trajectory = history.findHistory("one", START + 30 * MINUTE, START + 2 * HOUR);
+        assertEquals(1, trajectory.size());
+        assertEquals(5.002, trajectory.get(0).getLatitude());
+
+        // only the first hour ends before the cut-off
+        assertEquals(1, history.dropPartitionsBefore(START + HOUR + 5 * MINUTE));
+        assertEquals(2, history.findHistory("one", START, START + 3 * HOUR).size());
+        assertTrue(history.findHistory("two", START, START + 3 * HOUR).isEmpty());
+
+        // the widest window only reads the partitions that exist
+        trajectory = history.findHistory("one", 0, Long.MAX_VALUE);
+        assertEquals(2, trajectory.size());
+        assertEquals(5.002, trajectory.get(0).getLatitude());
+    }
+}
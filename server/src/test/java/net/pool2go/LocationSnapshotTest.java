@@ -0,0 +1,74 @@
+package net.pool2go;
+
+import org.junit.jupiter.api.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LocationSnapshotTest {
+
+    private File snapshotFile;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        snapshotFile = new File(new File(".").getCanonicalPath(), "pool2go_test.snapshot");
+        snapshotFile.delete();
+    }
+
+    @Test
+    void snapshotRoundTrip() throws IOException {
+        // enough locations for several chunks
+        LocationIndex index = new LocationIndex();
+        for (int i = 0; i < 10000; ++i)
+            index.put("key" + i, -80 + i * 0.001, 100);
+        index.put("key42", 5.001, 5.001);
+
+        assertEquals(10000, LocationSnapshot.write(snapshotFile, index, 1234));
+
+        LocationIndex loaded = new LocationIndex();
+        assertEquals(1234, LocationSnapshot.read(snapshotFile, loaded));
+        assertEquals(10000, loaded.size());
+
+        ArrayList<LocationObject> locationObjects = new ArrayList<>();
+        loaded.findNearest(new LocationObject("other", 5.003, 5.003), locationObjects);
+        assertEquals(1, locationObjects.size());
+        assertEquals(5.001, locationObjects.get(0).getLatitude());
+    }
+
+    @Test
+    void longKeyIsKept() throws IOException {
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < 70000; ++i)
+            key.append('k');
+
+        LocationIndex index = new LocationIndex();
+        index.put(key.toString(), 5.001, 5.001);
+        index.put("short", 50, 50);
+        assertEquals(2, LocationSnapshot.write(snapshotFile, index, 2));
+
+        LocationIndex loaded = new LocationIndex();
+        LocationSnapshot.read(snapshotFile, loaded);
+        assertEquals(2, loaded.size());
+
+        ArrayList<LocationObject> locationObjects = new ArrayList<>();
+        loaded.findNearest(new LocationObject("other", 5.003, 5.003), locationObjects);
+        assertEquals(1, locationObjects.size());
+    }
+
+    @Test
+    void truncatedSnapshotIsRejected() throws IOException {
+        LocationIndex index = new LocationIndex();
+        index.put("key", 5.001, 5.001);
+        LocationSnapshot.write(snapshotFile, index, 1);
+
+        try (FileOutputStream out = new FileOutputStream(snapshotFile, true)) {
+            out.getChannel().truncate(snapshotFile.length() - 1);
+        }
+
+        assertThrows(IOException.class, () -> LocationSnapshot.read(snapshotFile, new LocationIndex()));
+    }
+}
@@ -14,6 +14,7 @@ class ServerTest {
     private static String currentWorkingDirectory;
     private static String databaseFileName = "/pool2go_test.sqlite";
     private static final int TEST_PORT = 8082;
+    private static final int[] SNAPSHOT_TEST_PORTS = {8089, 8090, 8091, 8092, 8093};
     private static Thread server;
 
     @BeforeAll
@@ -155,6 +156,212 @@ class ServerTest {
         }
     }
 
+    /**
+     * A gateway relays three devices in one batch, two of them close to each other.
+     */
+    @Test
+    void simulateGatewayBatch() {
+        Object received = null;
+        LocationBatch batch = new LocationBatch();
+        batch.add(new LocationObject("device one", 5.001, 5.001));
+        batch.add(new LocationObject("device two", 5.003, 5.003));
+        batch.add(new LocationObject("device three", 50, 50));
+
+        try {
+            Socket client = new Socket("localhost", TEST_PORT);
+            ObjectInputStream in = new ObjectInputStream(client.getInputStream());
+            LocationObject locationObject = (LocationObject) in.readObject();
+            ObjectOutputStream out = new ObjectOutputStream(client.getOutputStream());
+            out.writeObject(locationObject);
+            out.flush();
+
+            // send all devices at once
+            out.writeObject(batch);
+            out.flush();
+
+            received = in.readObject();
+            client.close();
+        } catch (ClassNotFoundException e) {
+            System.out.println(e.getMessage());
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+
+        assertTrue(received instanceof LocationBatch);
+        LocationBatch neighbours = (LocationBatch) received;
+        assertEquals(3, neighbours.size());
+        assertEquals(5.003, neighbours.getLocationObjects().get(0).getLatitude());
+        assertEquals(5.001, neighbours.getLocationObjects().get(1).getLatitude());
+        assertEquals(360, neighbours.getLocationObjects().get(2).getLatitude());
+        assertEquals("device three", neighbours.getLocationObjects().get(2).getKey());
+    }
+
+    /**
+     * A batch with a missing device is turned down, and the server keeps answering other clients.
+     */
+    @Test
+    void simulateMalformedBatch() {
+        Object received = null;
+        LocationBatch batch = new LocationBatch();
+        batch.add(new LocationObject("device one", 5.001, 5.001));
+        batch.add(null);
+
+        try {
+            Socket client = new Socket("localhost", TEST_PORT);
+            ObjectInputStream in = new ObjectInputStream(client.getInputStream());
+            LocationObject locationObject = (LocationObject) in.readObject();
+            ObjectOutputStream out = new ObjectOutputStream(client.getOutputStream());
+            out.writeObject(locationObject);
+            out.flush();
+
+            out.writeObject(batch);
+            out.flush();
+
+            received = in.readObject();
+            client.close();
+        } catch (ClassNotFoundException e) {
+            System.out.println(e.getMessage());
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+
+        assertTrue(received instanceof LocationObject);
+        assertEquals(360, ((LocationObject) received).getLatitude());
+
+        // the next client is still served
+        received = null;
+        try {
+            Socket client = new Socket("localhost", TEST_PORT);
+            client.setSoTimeout(5000);
+            ObjectInputStream in = new ObjectInputStream(client.getInputStream());
+            LocationObject locationObject = (LocationObject) in.readObject();
+            ObjectOutputStream out = new ObjectOutputStream(client.getOutputStream());
+            out.writeObject(locationObject);
+            out.flush();
+
+            out.writeObject(new LocationObject("device two", 5.003, 5.003));
+            out.flush();
+
+            received = in.readObject();
+            client.close();
+        } catch (ClassNotFoundException e) {
+            System.out.println(e.getMessage());
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+
+        assertTrue(received instanceof LocationObject);
+    }
+
+    /**
+     * Handshake with a server, send a location with its own key and return the server's answer.
+     */
+    private LocationObject sendLocation(int port, LocationObject clientLocationObject) throws IOException, ClassNotFoundException {
+        try (Socket client = new Socket("localhost", port)) {
+            ObjectInputStream in = new ObjectInputStream(client.getInputStream());
+            LocationObject locationObject = (LocationObject) in.readObject();
+            ObjectOutputStream out = new ObjectOutputStream(client.getOutputStream());
+            out.writeObject(locationObject);
+            out.flush();
+
+            out.writeObject(clientLocationObject);
+            out.flush();
+
+            return (LocationObject) in.readObject();
+        }
+    }
+
+    /**
+     * Run a server with snapshots enabled until one more client has been served, so it writes its final snapshot.
+     */
+    private LocationObject runSnapshotServer(int port, String databaseUrl, File snapshotFile,
+                                             LocationObject clientLocationObject) throws Exception {
+        Server snapshotServer = new Server(port, databaseUrl);
+        snapshotServer.enableSnapshots(snapshotFile, 3600);
+        Thread thread = new Thread(snapshotServer);
+        thread.start();
+
+        LocationObject locationObject = sendLocation(port, clientLocationObject);
+
+        // the server only checks for the interrupt after serving a client
+        thread.interrupt();
+        sendLocation(port, new LocationObject("closing client", 80, 80));
+        thread.join();
+        return locationObject;
+    }
+
+    /**
+     * A restarted server loads its snapshot and replays the rows updated since, unless the table was recreated.
+     */
+    @Test
+    void snapshotIsReplayedAfterRestart() throws Exception {
+        String databaseUrl = currentWorkingDirectory + "/pool2go_snapshot_test.sqlite";
+        File snapshotFile = new File(currentWorkingDirectory, "pool2go_test.snapshot");
+        new File(databaseUrl).delete();
+        snapshotFile.delete();
+
+        Connection connection = DriverManager.getConnection("jdbc:sqlite:" + databaseUrl);
+        connection.createStatement().execute("CREATE TABLE IF NOT EXISTS Locations ( key text PRIMARY KEY, latitude real, longitude real );");
+        connection.createStatement().execute("INSERT INTO Locations(key, latitude, longitude) VALUES('one', 5.001, 5.001)");
+        connection.createStatement().execute("INSERT INTO Locations(key, latitude, longitude) VALUES('two', 50, 50)");
+        connection.close();
+
+        // first run reads every row and writes the snapshot when it stops
+        LocationObject locationObject = runSnapshotServer(SNAPSHOT_TEST_PORTS[0], databaseUrl, snapshotFile,
+                new LocationObject("three", 5.002, 5.002));
+        assertEquals(5.001, locationObject.getLatitude());
+        assertTrue(snapshotFile.exists());
+
+        // 'two' moves while no server runs, the update has to be replayed on top of the snapshot
+        connection = DriverManager.getConnection("jdbc:sqlite:" + databaseUrl);
+        connection.createStatement().execute("UPDATE Locations SET latitude = 70.001, longitude = 70.001 WHERE key = 'two'");
+        connection.close();
+
+        locationObject = runSnapshotServer(SNAPSHOT_TEST_PORTS[1], databaseUrl, snapshotFile,
+                new LocationObject("five", 70.002, 70.002));
+        assertEquals(70.001, locationObject.getLatitude());
+
+        // a recreated table that grew past the snapshot must not bring back the old locations
+        connection = DriverManager.getConnection("jdbc:sqlite:" + databaseUrl);
+        connection.createStatement().execute("DROP TABLE Locations");
+        connection.createStatement().execute("CREATE TABLE IF NOT EXISTS Locations ( key text PRIMARY KEY, latitude real, longitude real );");
+        for (int i = 0; i < 20; ++i)
+            connection.createStatement().execute("INSERT INTO Locations(key, latitude, longitude) VALUES('far" + i + "', 60, 60)");
+        connection.close();
+
+        locationObject = runSnapshotServer(SNAPSHOT_TEST_PORTS[2], databaseUrl, snapshotFile,
+                new LocationObject("four", 5.002, 5.002));
+        assertEquals(360, locationObject.getLatitude());
+    }
+
+    /**
+     * SQLite hands the rowid of a deleted highest row to the next insert, the row still has to be replayed.
+     */
+    @Test
+    void rowReusingDeletedRowidIsReplayed() throws Exception {
+        String databaseUrl = currentWorkingDirectory + "/pool2go_snapshot_test.sqlite";
+        File snapshotFile = new File(currentWorkingDirectory, "pool2go_test.snapshot");
+        new File(databaseUrl).delete();
+        snapshotFile.delete();
+
+        Connection connection = DriverManager.getConnection("jdbc:sqlite:" + databaseUrl);
+        connection.createStatement().execute("CREATE TABLE IF NOT EXISTS Locations ( key text PRIMARY KEY, latitude real, longitude real );");
+        connection.createStatement().execute("INSERT INTO Locations(key, latitude, longitude) VALUES('one', 5.001, 5.001)");
+        connection.close();
+
+        runSnapshotServer(SNAPSHOT_TEST_PORTS[3], databaseUrl, snapshotFile, new LocationObject("two", 50, 50));
+
+        // the closing client holds the highest rowid, the new row takes it over
+        connection = DriverManager.getConnection("jdbc:sqlite:" + databaseUrl);
+        connection.createStatement().execute("DELETE FROM Locations WHERE key = 'closing client'");
+        connection.createStatement().execute("INSERT INTO Locations(key, latitude, longitude) VALUES('six', 60.001, 60.001)");
+        connection.close();
+
+        LocationObject locationObject = runSnapshotServer(SNAPSHOT_TEST_PORTS[4], databaseUrl, snapshotFile,
+                new LocationObject("seven", 60.002, 60.002));
+        assertEquals(60.001, locationObject.getLatitude());
+    }
+
     @AfterEach
     void tearDown() {
         // if the server is keeping a list of clients separate from the database, make sure to clear it here
@@ -0,0 +1,47 @@
+package net.pool2go;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Many LocationObjects sent in one message, for gateways relaying the positions of many devices over a single
+ * connection.</p>
+ *
+ * <p>Each LocationObject carries the key of its own device. The server answers a batch with a batch of the same size
+ * and order, holding one neighbour per device.</p>
+ *
+ * @see LocationObject
+ */
+public class LocationBatch implements Serializable {
+
+    private ArrayList<LocationObject> locationObjects;
+
+    /**
+     * Create an empty batch.
+     */
+    public LocationBatch() {
+        locationObjects = new ArrayList<>();
+    }
+
+    /**
+     * Create a batch holding the given locations.
+     *
+     * @param locationObjects the locations, one per device
+     */
+    public LocationBatch(List<LocationObject> locationObjects) {
+        this.locationObjects = new ArrayList<>(locationObjects);
+    }
+
+    public void add(LocationObject locationObject) {
+        locationObjects.add(locationObject);
+    }
+
+    public ArrayList<LocationObject> getLocationObjects() {
+        return locationObjects;
+    }
+
+    public int size() {
+        return locationObjects.size();
+    }
+}